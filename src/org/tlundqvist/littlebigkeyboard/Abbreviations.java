@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Abbreviations the user has set up, expanded to their text when typed as a word.
+ * Compiled from the settings into a trie in a file, which is read as it is: a
+ * typed character is one step from the node of the characters before it, a binary
+ * search among its few children.
+ *
+ * The settings text has one abbreviation per line, "abbreviation=expansion".
+ * Abbreviations are letters and digits, matched ignoring case. "\n" in an expansion
+ * is a line break.
+ *
+ * File format, big endian:
+ * <pre>
+ * int   MAGIC
+ * short FORMAT_VERSION
+ * short 0
+ * int   number of nodes, node 0 is the root
+ * int   number of edges
+ * nodes, each:
+ *   int   index of the first edge
+ *   short number of edges
+ *   short expansion length, 0 if no abbreviation ends here
+ *   int   index of the first expansion char
+ * edges, sorted by character within a node:
+ *   char  character, lower case
+ *   int   node it leads to
+ * int   number of expansion chars, then the chars
+ * </pre>
+ */
+public class Abbreviations {
+
+	private static final String TAG = "Abbreviations";
+
+	/** Compiled abbreviations in the files directory */
+	public static final String FILE_NAME = "abbreviations.bin";
+
+	/** Longest abbreviation */
+	public static final int MAX_LENGTH = 32;
+
+	private static final int MAGIC = 0x4c424b41; // "LBKA"
+	/** Increase when the format changes */
+	private static final short FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int NODE_SIZE = 12;
+	private static final int EDGE_SIZE = 6;
+
+	private final ByteBuffer mBuf;
+	private final int mEdges;
+	private final int mChars;
+	private final long mModified;
+
+	private Abbreviations(ByteBuffer buf, int nodeCount, int edgeCount, long modified) {
+		mBuf = buf;
+		mEdges = HEADER_SIZE + nodeCount * NODE_SIZE;
+		mChars = mEdges + edgeCount * EDGE_SIZE + 4;
+		mModified = modified;
+	}
+
+	/** Whether c can be part of an abbreviation */
+	public static boolean isAbbreviationChar(int c) {
+		return Character.isLetterOrDigit(c);
+	}
+
+	/**
+	 * Reads compiled abbreviations.
+	 * @return the abbreviations, or null if the file is missing or broken
+	 */
+	public static Abbreviations load(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		final long modified = file.lastModified();
+		try {
+			final byte[] data = new byte[(int) file.length()];
+			FileInputStream in = new FileInputStream(file);
+			try {
+				int n = 0;
+				while (n < data.length) {
+					int r = in.read(data, n, data.length - n);
+					if (r < 0)
+						throw new IOException("Unexpected end of file");
+					n += r;
+				}
+			} finally {
+				in.close();
+			}
+			final ByteBuffer buf = ByteBuffer.wrap(data);
+			if (data.length < HEADER_SIZE || buf.getInt(0) != MAGIC
+					|| buf.getShort(4) != FORMAT_VERSION) {
+				Log.w(TAG, "Not abbreviations: " + file);
+				return null;
+			}
+			final int nodeCount = buf.getInt(8);
+			final int edgeCount = buf.getInt(12);
+			final int chars = HEADER_SIZE + nodeCount * NODE_SIZE + edgeCount * EDGE_SIZE;
+			if (nodeCount < 1 || edgeCount < 0 || chars + 4 > data.length
+					|| chars + 4 + buf.getInt(chars) * 2 != data.length) {
+				Log.w(TAG, "Broken abbreviations: " + file);
+				return null;
+			}
+			return new Abbreviations(buf, nodeCount, edgeCount, modified);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not read " + file, e);
+			return null;
+		}
+	}
+
+	/** Modification time of the file these were read from */
+	public long getModified() {
+		return mModified;
+	}
+
+	/** Node of the empty abbreviation */
+	public int getRoot() {
+		return 0;
+	}
+
+	/**
+	 * Returns the node after one more character, or -1 if no abbreviation
+	 * continues with it.
+	 */
+	public int step(int node, char c) {
+		c = Character.toLowerCase(c);
+		final int nodeOffset = HEADER_SIZE + node * NODE_SIZE;
+		final int first = mBuf.getInt(nodeOffset);
+		int low = 0;
+		int high = (mBuf.getShort(nodeOffset + 4) & 0xffff) - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final int edge = mEdges + (first + mid) * EDGE_SIZE;
+			final char midChar = mBuf.getChar(edge);
+			if (midChar < c) {
+				low = mid + 1;
+			} else if (midChar > c) {
+				high = mid - 1;
+			} else {
+				return mBuf.getInt(edge + 2);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the expansion of the abbreviation ending at a node, or null if none
+	 * ends there.
+	 */
+	public String getExpansion(int node) {
+		final int nodeOffset = HEADER_SIZE + node * NODE_SIZE;
+		final int length = mBuf.getShort(nodeOffset + 6) & 0xffff;
+		if (length == 0) {
+			return null;
+		}
+		final int start = mChars + mBuf.getInt(nodeOffset + 8) * 2;
+		final char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = mBuf.getChar(start + i * 2);
+		}
+		return new String(chars);
+	}
+
+	private static class Node {
+		final TreeMap<Character, Node> children = new TreeMap<Character, Node>();
+		String expansion;
+		int index;
+	}
+
+	/**
+	 * Compiles the abbreviations from the settings text into a file. Lines that are
+	 * not abbreviations are skipped.
+	 */
+	public static void compile(String source, File file) throws IOException {
+		final Node root = new Node();
+		final String[] lines = source != null ? source.split("\n") : new String[0];
+		for (int i = 0; i < lines.length; i++) {
+			final int equals = lines[i].indexOf('=');
+			if (equals < 0) {
+				continue;
+			}
+			final String abbreviation = lines[i].substring(0, equals).trim().toLowerCase();
+			final String expansion = lines[i].substring(equals + 1).trim().replace("\\n", "\n");
+			if (abbreviation.length() == 0 || abbreviation.length() > MAX_LENGTH
+					|| expansion.length() == 0 || expansion.length() > 0xffff) {
+				continue;
+			}
+			Node node = root;
+			for (int j = 0; j < abbreviation.length() && node != null; j++) {
+				final char c = abbreviation.charAt(j);
+				if (!isAbbreviationChar(c)) {
+					node = null;
+					break;
+				}
+				Node child = node.children.get(Character.valueOf(c));
+				if (child == null) {
+					child = new Node();
+					node.children.put(Character.valueOf(c), child);
+				}
+				node = child;
+			}
+			if (node != null) {
+				node.expansion = expansion;
+			}
+		}
+
+		// Number the nodes breadth first, so that a node's edges are written together
+		final ArrayList<Node> nodes = new ArrayList<Node>();
+		nodes.add(root);
+		for (int i = 0; i < nodes.size(); i++) {
+			for (Node child : nodes.get(i).children.values()) {
+				child.index = nodes.size();
+				nodes.add(child);
+			}
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeShort(FORMAT_VERSION);
+		out.writeShort(0);
+		out.writeInt(nodes.size());
+		out.writeInt(nodes.size() - 1); // every node but the root has one edge to it
+		int edge = 0;
+		int chars = 0;
+		for (Node node : nodes) {
+			out.writeInt(edge);
+			out.writeShort(node.children.size());
+			out.writeShort(node.expansion != null ? node.expansion.length() : 0);
+			out.writeInt(chars);
+			edge += node.children.size();
+			if (node.expansion != null) {
+				chars += node.expansion.length();
+			}
+		}
+		for (Node node : nodes) {
+			for (Map.Entry<Character, Node> e : node.children.entrySet()) {
+				out.writeChar(e.getKey().charValue());
+				out.writeInt(e.getValue().index);
+			}
+		}
+		out.writeInt(chars);
+		for (Node node : nodes) {
+			if (node.expansion != null) {
+				out.writeChars(node.expansion);
+			}
+		}
+		out.close();
+
+		final File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(tmp);
+		try {
+			bytes.writeTo(stream);
+		} finally {
+			stream.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not rename " + tmp);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.text.TextUtils;
+import android.view.inputmethod.CompletionInfo;
+
+/**
+ * Immutable list of candidates shown in the {@link CandidateView}, shared between
+ * the input method and the view. Candidates from the editor keep their
+ * CharSequence and CompletionInfo without copying them to strings.
+ *
+ * Editors with auto completion send a new list on every keystroke, often the same
+ * as the last one. {@link #update} hands back the previous list when nothing
+ * changed, and {@link #firstDifference} tells the view how much of its layout can
+ * be kept.
+ */
+public class CandidateList {
+
+	public static final CandidateList EMPTY =
+			new CandidateList(new CharSequence[0], null, 0);
+
+	/** Candidate texts, entries 0 to mCount - 1 are used */
+	private final CharSequence[] mTexts;
+	/** Completion behind each text, null when the candidates are not completions */
+	private final CompletionInfo[] mCompletions;
+	private final int mCount;
+
+	private CandidateList(CharSequence[] texts, CompletionInfo[] completions, int count) {
+		mTexts = texts;
+		mCompletions = completions;
+		mCount = count;
+	}
+
+	/**
+	 * Returns a list of completions from the editor. Null entries are left out.
+	 * @param previous list shown so far, returned as it is if the completions are
+	 * the same
+	 */
+	public static CandidateList update(CandidateList previous, CompletionInfo[] completions) {
+		if (completions == null) {
+			return EMPTY;
+		}
+		int count = 0;
+		for (int i = 0; i < completions.length; i++) {
+			if (completions[i] != null) {
+				count++;
+			}
+		}
+		if (count == 0) {
+			return EMPTY;
+		}
+		if (previous != null && previous.mCompletions != null
+				&& previous.sameCompletions(completions, count)) {
+			return previous;
+		}
+		final CharSequence[] texts = new CharSequence[count];
+		final CompletionInfo[] infos = new CompletionInfo[count];
+		int n = 0;
+		for (int i = 0; i < completions.length; i++) {
+			if (completions[i] != null) {
+				infos[n] = completions[i];
+				texts[n] = completions[i].getText();
+				n++;
+			}
+		}
+		return new CandidateList(texts, infos, count);
+	}
+
+	/**
+	 * Returns a list of words that are not editor completions.
+	 * @param words the words, kept by the list and not to be changed afterwards
+	 */
+	public static CandidateList fromWords(CharSequence[] words) {
+		if (words.length == 0) {
+			return EMPTY;
+		}
+		return new CandidateList(words, null, words.length);
+	}
+
+	/** Whether completions hold the same texts, ids and positions as this list */
+	private boolean sameCompletions(CompletionInfo[] completions, int count) {
+		if (count != mCount) {
+			return false;
+		}
+		int n = 0;
+		for (int i = 0; i < completions.length; i++) {
+			final CompletionInfo ci = completions[i];
+			if (ci == null) {
+				continue;
+			}
+			final CompletionInfo old = mCompletions[n];
+			if (ci.getId() != old.getId() || ci.getPosition() != old.getPosition()
+					|| !TextUtils.equals(ci.getText(), mTexts[n])) {
+				return false;
+			}
+			n++;
+		}
+		return true;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public CharSequence getText(int index) {
+		return mTexts[index];
+	}
+
+	/**
+	 * Returns the completion behind a candidate, or null if the candidate is not a
+	 * completion from the editor.
+	 */
+	public CompletionInfo getCompletion(int index) {
+		return mCompletions != null ? mCompletions[index] : null;
+	}
+
+	/**
+	 * Returns the index of the first candidate whose text differs from the other
+	 * list, which is the smaller size if one list starts with the other.
+	 */
+	public int firstDifference(CandidateList other) {
+		if (other == this) {
+			return mCount;
+		}
+		final int n = Math.min(mCount, other.mCount);
+		for (int i = 0; i < n; i++) {
+			if (!TextUtils.equals(mTexts[i], other.mTexts[i])) {
+				return i;
+			}
+		}
+		return n;
+	}
+}
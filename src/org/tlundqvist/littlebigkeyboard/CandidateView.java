@@ -26,9 +26,10 @@ import android.graphics.drawable.Drawable;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.Scroller;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.tlundqvist.littlebigkeyboard.R;
 
@@ -37,7 +38,7 @@ public class CandidateView extends View {
     private static final int OUT_OF_BOUNDS = -1;
 
     private LittleBigKeyboard mService;
-    private List<String> mSuggestions;
+    private CandidateList mCandidates = CandidateList.EMPTY;
     private int mSelectedIndex;
     private int mTouchX = OUT_OF_BOUNDS;
     private Drawable mSelectionHighlight;
@@ -45,15 +46,24 @@ public class CandidateView extends View {
     
     private Rect mBgPadding;
 
-    private static final int MAX_SUGGESTIONS = 32;
-    private static final int SCROLL_PIXELS = 20;
+    /** Duration of springing back from past the ends */
+    private static final int SPRING_BACK_MILLIS = 250;
     
-    private int[] mWordWidth = new int[MAX_SUGGESTIONS];
-    private int[] mWordX = new int[MAX_SUGGESTIONS];
+    /** Left edge and width of each suggestion, grown when a longer list arrives */
+    private int[] mWordWidth = new int[32];
+    private int[] mWordX = new int[32];
+    
+    /** Measured text widths of recently shown words */
+    private static final int WIDTH_CACHE_SIZE = 256;
+    private final Map<String, Integer> mWidthCache =
+            new LinkedHashMap<String, Integer>(WIDTH_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > WIDTH_CACHE_SIZE;
+                }
+            };
 
     private static final int X_GAP = 10;
-    
-    private static final List<String> EMPTY_LIST = new ArrayList<String>();
 
     private int mColorNormal;
     private int mColorRecommended;
@@ -61,7 +71,8 @@ public class CandidateView extends View {
     private int mVerticalPadding;
     private Paint mPaint;
     private boolean mScrolled;
-    private int mTargetScrollX;
+    /** Fling and spring back, driven by time so that speed does not depend on frame rate */
+    private Scroller mScroller;
     
     private int mTotalWidth;
     
@@ -98,24 +109,40 @@ public class CandidateView extends View {
         mPaint.setTextSize(r.getDimensionPixelSize(R.dimen.candidate_font_height));
         mPaint.setStrokeWidth(0);
         
+        mScroller = new Scroller(context);
         mGestureDetector = new GestureDetector(new GestureDetector.SimpleOnGestureListener() {
             @Override
             public boolean onScroll(MotionEvent e1, MotionEvent e2,
                     float distanceX, float distanceY) {
                 mScrolled = true;
-                int sx = getScrollX();
-                sx += distanceX;
-                if (sx < 0) {
-                    sx = 0;
-                }
-                if (sx + getWidth() > mTotalWidth) {                    
-                    sx -= distanceX;
+                final int sx = getScrollX();
+                final int maxScrollX = getMaxScrollX();
+                // Past the ends the strip follows the finger at half speed, up to a
+                // quarter of the view width
+                final int overscroll = getWidth() / 4;
+                int nx;
+                if ((sx < 0 && distanceX < 0) || (sx > maxScrollX && distanceX > 0)) {
+                    nx = sx + (int) (distanceX / 2);
+                } else {
+                    nx = sx + (int) distanceX;
                 }
-                mTargetScrollX = sx;
-                scrollTo(sx, getScrollY());
+                nx = Math.max(-overscroll, Math.min(nx, maxScrollX + overscroll));
+                scrollTo(nx, getScrollY());
                 invalidate();
                 return true;
             }
+            
+            @Override
+            public boolean onFling(MotionEvent e1, MotionEvent e2,
+                    float velocityX, float velocityY) {
+                mScrolled = true;
+                if (!springBack()) {
+                    mScroller.fling(getScrollX(), 0, (int) -velocityX, 0,
+                            0, getMaxScrollX(), 0, 0);
+                    invalidate();
+                }
+                return true;
+            }
         });
         setHorizontalFadingEdgeEnabled(true);
         setWillNotDraw(false);
@@ -153,16 +180,77 @@ public class CandidateView extends View {
     }
 
     /**
-     * If the canvas is null, then only touch calculations are performed to pick the target
-     * candidate.
+     * Positions the suggestions from an index on, those before it are kept as they
+     * are. Text widths come from a cache, so a list that mostly repeats the
+     * previous one is laid out without measuring text.
+     */
+    private void layoutSuggestions(int from) {
+        final CandidateList candidates = mCandidates;
+        final int count = candidates.size();
+        if (mWordX.length < count) {
+            final int size = Math.max(count, mWordX.length * 2);
+            final int[] wordX = new int[size];
+            final int[] wordWidth = new int[size];
+            System.arraycopy(mWordX, 0, wordX, 0, from);
+            System.arraycopy(mWordWidth, 0, wordWidth, 0, from);
+            mWordX = wordX;
+            mWordWidth = wordWidth;
+        }
+        int x = from > 0 ? mWordX[from - 1] + mWordWidth[from - 1] : 0;
+        for (int i = from; i < count; i++) {
+            final int wordWidth = getTextWidth(candidates.getText(i)) + X_GAP * 2;
+            mWordX[i] = x;
+            mWordWidth[i] = wordWidth;
+            x += wordWidth;
+        }
+        mTotalWidth = x;
+    }
+    
+    private int getTextWidth(CharSequence text) {
+        if (!(text instanceof String)) {
+            // Styled text has no value equality, do not cache it
+            return (int) mPaint.measureText(text, 0, text.length());
+        }
+        Integer width = mWidthCache.get(text);
+        if (width == null) {
+            width = Integer.valueOf((int) mPaint.measureText((String) text));
+            mWidthCache.put((String) text, width);
+        }
+        return width.intValue();
+    }
+    
+    /**
+     * Returns the suggestion at an x position in the scrolled content, or -1 if
+     * there is none.
+     */
+    private int getSuggestionAt(int x) {
+        final int count = mCandidates.size();
+        if (x < 0 || x >= mTotalWidth || count == 0) {
+            return -1;
+        }
+        // Last word starting at or before x
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (mWordX[mid] <= x) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Draws only the suggestions that are scrolled into view, the layout is done by
+     * {@link #layoutSuggestions(int)}.
      */
     @Override
     protected void onDraw(Canvas canvas) {
-        if (canvas != null) {
-            super.onDraw(canvas);
-        }
-        mTotalWidth = 0;
-        if (mSuggestions == null) return;
+        super.onDraw(canvas);
+        final int count = mCandidates.size();
+        if (count == 0) return;
         
         if (mBgPadding == null) {
             mBgPadding = new Rect(0, 0, 0, 0);
@@ -170,92 +258,104 @@ public class CandidateView extends View {
                 getBackground().getPadding(mBgPadding);
             }
         }
-        int x = 0;
-        final int count = mSuggestions.size(); 
         final int height = getHeight();
         final Rect bgPadding = mBgPadding;
         final Paint paint = mPaint;
-        final int touchX = mTouchX;
         final int scrollX = getScrollX();
-        final boolean scrolled = mScrolled;
+        final int right = scrollX + getWidth();
+        final int selected = mTouchX != OUT_OF_BOUNDS && !mScrolled ? mSelectedIndex : -1;
         final boolean typedWordValid = mTypedWordValid;
         final int y = (int) (((height - mPaint.getTextSize()) / 2) - mPaint.ascent());
 
-        for (int i = 0; i < count; i++) {
-            String suggestion = mSuggestions.get(i);
-            float textWidth = paint.measureText(suggestion);
-            final int wordWidth = (int) textWidth + X_GAP * 2;
-
-            mWordX[i] = x;
-            mWordWidth[i] = wordWidth;
+        for (int i = Math.max(0, getSuggestionAt(scrollX)); i < count; i++) {
+            final int x = mWordX[i];
+            if (x >= right) {
+                break;
+            }
+            final int wordWidth = mWordWidth[i];
             paint.setColor(mColorNormal);
-            if (touchX + scrollX >= x && touchX + scrollX < x + wordWidth && !scrolled) {
-                if (canvas != null) {
-                    canvas.translate(x, 0);
-                    mSelectionHighlight.setBounds(0, bgPadding.top, wordWidth, height);
-                    mSelectionHighlight.draw(canvas);
-                    canvas.translate(-x, 0);
-                }
-                mSelectedIndex = i;
+            if (i == selected) {
+                canvas.translate(x, 0);
+                mSelectionHighlight.setBounds(0, bgPadding.top, wordWidth, height);
+                mSelectionHighlight.draw(canvas);
+                canvas.translate(-x, 0);
             }
 
-            if (canvas != null) {
-                if ((i == 1 && !typedWordValid) || (i == 0 && typedWordValid)) {
-                    paint.setFakeBoldText(true);
-                    paint.setColor(mColorRecommended);
-                } else if (i != 0) {
-                    paint.setColor(mColorOther);
-                }
-                canvas.drawText(suggestion, x + X_GAP, y, paint);
-                paint.setColor(mColorOther); 
-                canvas.drawLine(x + wordWidth + 0.5f, bgPadding.top, 
-                        x + wordWidth + 0.5f, height + 1, paint);
-                paint.setFakeBoldText(false);
+            if ((i == 1 && !typedWordValid) || (i == 0 && typedWordValid)) {
+                paint.setFakeBoldText(true);
+                paint.setColor(mColorRecommended);
+            } else if (i != 0) {
+                paint.setColor(mColorOther);
             }
-            x += wordWidth;
-        }
-        mTotalWidth = x;
-        if (mTargetScrollX != getScrollX()) {
-            scrollToTarget();
+            final CharSequence text = mCandidates.getText(i);
+            canvas.drawText(text, 0, text.length(), x + X_GAP, y, paint);
+            paint.setColor(mColorOther); 
+            canvas.drawLine(x + wordWidth + 0.5f, bgPadding.top, 
+                    x + wordWidth + 0.5f, height + 1, paint);
+            paint.setFakeBoldText(false);
         }
     }
     
-    private void scrollToTarget() {
-        int sx = getScrollX();
-        if (mTargetScrollX > sx) {
-            sx += SCROLL_PIXELS;
-            if (sx >= mTargetScrollX) {
-                sx = mTargetScrollX;
-                requestLayout();
-            }
-        } else {
-            sx -= SCROLL_PIXELS;
-            if (sx <= mTargetScrollX) {
-                sx = mTargetScrollX;
-                requestLayout();
-            }
+    private int getMaxScrollX() {
+        return Math.max(0, mTotalWidth - getWidth());
+    }
+    
+    /**
+     * Starts moving back within the ends if scrolled past them.
+     * @return whether it was past the ends
+     */
+    private boolean springBack() {
+        final int sx = getScrollX();
+        final int target = Math.max(0, Math.min(sx, getMaxScrollX()));
+        if (sx == target) {
+            return false;
         }
-        scrollTo(sx, getScrollY());
+        mScroller.startScroll(sx, 0, target - sx, 0, SPRING_BACK_MILLIS);
         invalidate();
+        return true;
     }
     
-    public void setSuggestions(List<String> suggestions, boolean completions,
+    /**
+     * Advances a fling or spring back, called as part of drawing.
+     */
+    @Override
+    public void computeScroll() {
+        if (mScroller.computeScrollOffset()) {
+            scrollTo(mScroller.getCurrX(), getScrollY());
+            invalidate();
+        }
+    }
+    
+    /**
+     * Shows a new list of candidates. Only the part that differs from the list
+     * shown so far is laid out again, an unchanged list is simply taken over.
+     */
+    public void setSuggestions(CandidateList candidates, boolean completions,
             boolean typedWordValid) {
-        clear();
-        if (suggestions != null) {
-            mSuggestions = new ArrayList<String>(suggestions);
+        if (candidates == null) {
+            candidates = CandidateList.EMPTY;
+        }
+        final int keep = candidates.firstDifference(mCandidates);
+        if (keep == candidates.size() && keep == mCandidates.size()
+                && typedWordValid == mTypedWordValid) {
+            // Same texts, only the completions behind them may have changed
+            mCandidates = candidates;
+            return;
         }
+        mCandidates = candidates;
+        mTouchX = OUT_OF_BOUNDS;
+        mSelectedIndex = -1;
         mTypedWordValid = typedWordValid;
+        mScroller.forceFinished(true);
         scrollTo(0, 0);
-        mTargetScrollX = 0;
-        // Compute the total width
-        onDraw(null);
+        layoutSuggestions(keep);
         invalidate();
         requestLayout();
     }
 
     public void clear() {
-        mSuggestions = EMPTY_LIST;
+        mCandidates = CandidateList.EMPTY;
+        mTotalWidth = 0;
         mTouchX = OUT_OF_BOUNDS;
         mSelectedIndex = -1;
         invalidate();
@@ -275,10 +375,16 @@ public class CandidateView extends View {
 
         switch (action) {
         case MotionEvent.ACTION_DOWN:
-            mScrolled = false;
+            // A touch that stops a fling does not pick anything
+            mScrolled = !mScroller.isFinished();
+            mScroller.forceFinished(true);
+            mSelectedIndex = getSuggestionAt(x + getScrollX());
             invalidate();
             break;
         case MotionEvent.ACTION_MOVE:
+            if (!mScrolled) {
+                mSelectedIndex = getSuggestionAt(x + getScrollX());
+            }
             if (y <= 0) {
                 // Fling up!?
                 if (mSelectedIndex >= 0) {
@@ -293,6 +399,8 @@ public class CandidateView extends View {
                 if (mSelectedIndex >= 0) {
                     mService.pickSuggestionManually(mSelectedIndex);
                 }
+            } else {
+                springBack();
             }
             mSelectedIndex = -1;
             removeHighlight();
@@ -309,8 +417,7 @@ public class CandidateView extends View {
      */
     public void takeSuggestionAt(float x) {
         mTouchX = (int) x;
-        // To detect candidate
-        onDraw(null);
+        mSelectedIndex = getSuggestionAt(mTouchX + getScrollX());
         if (mSelectedIndex >= 0) {
             mService.pickSuggestionManually(mSelectedIndex);
         }
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.inputmethodservice.Keyboard.Key;
+import android.inputmethodservice.Keyboard.Row;
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.tlundqvist.littlebigkeyboard.LatinKeyboard.LatinKey;
+
+/**
+ * Binary form of a keyboard layout, so that the XML only has to be parsed once.
+ * The first time a layout is needed it is parsed from XML, and {@link KeyboardLoader}
+ * later writes it to the cache directory from its background thread. After that it
+ * is loaded with a single file read and scaled to the current display width.
+ *
+ * Horizontal sizes in the XML are fractions of the display width, vertical sizes
+ * are key heights plus vertical gaps which are also fractions of the width. The
+ * file keeps the width dependent parts apart so they can be scaled. Scaled keys
+ * may be one pixel off compared to parsing the XML at that width.
+ *
+ * File format, big endian:
+ * <pre>
+ * int   MAGIC
+ * short FORMAT_VERSION
+ * long  modification time of the application package
+ * int   layout resource id
+ * int   key height the file was built with
+ * int   display width the file was built with
+ * int   keyboard width
+ * int   keyboard height, fixed part and width dependent part
+ * short number of keys
+ * per key:
+ *   short x, width, gap
+ *   short y, fixed part and width dependent part
+ *   short height
+ *   byte  edge flags
+ *   byte  FLAG_* bits
+ *   int   icon resource id or 0
+ *   byte  number of codes, then int codes
+ *   short label length or -1 for none, then the label chars
+ *   short text length or -1 for none, then the text chars
+ *   short popup characters length or -1 for none, then the chars
+ *   int   popup keyboard resource id or 0
+ * </pre>
+ *
+ * Keys with a preview icon are not written, Key does not keep its resource id.
+ * Such layouts are always parsed from XML.
+ */
+public class CompiledLayout {
+
+	private static final String TAG = "CompiledLayout";
+
+	private static final int MAGIC = 0x4c424b4c; // "LBKL"
+	/** Increase when the format changes */
+	private static final short FORMAT_VERSION = 3;
+
+	private static final int FLAG_STICKY     = 1;
+	private static final int FLAG_REPEATABLE = 2;
+	private static final int FLAG_MODIFIER   = 4;
+
+	/** Package file time, 0 until known */
+	private static long sPackageTime;
+
+	/**
+	 * Returns a keyboard layout, from the compiled file if there is a valid one,
+	 * otherwise parsed from XML. A parsed layout is not written here, that is left
+	 * to {@link #compile} off the main thread.
+	 */
+	public static LatinKeyboard load(Context context, int layoutResId) {
+		final Resources res = context.getResources();
+		final int keyHeight = res.getDimensionPixelSize(R.dimen.key_height);
+		final File file = getFile(context, layoutResId, keyHeight);
+
+		if (file.exists()) {
+			try {
+				LatinKeyboard keyboard = read(context, file, layoutResId,
+						getPackageTime(context), keyHeight,
+						res.getDisplayMetrics().widthPixels);
+				if (keyboard != null) {
+					return keyboard;
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Could not read " + file, e);
+			} catch (RuntimeException e) {
+				// Truncated or otherwise broken
+				Log.w(TAG, "Could not load " + file, e);
+			}
+		}
+		return new LatinKeyboard(context, layoutResId);
+	}
+
+	/**
+	 * Writes the compiled form of a layout that {@link #load} parsed from XML, for
+	 * the next time it is loaded. Does nothing for a layout loaded compiled.
+	 */
+	public static void compile(Context context, LatinKeyboard keyboard, int layoutResId) {
+		if (keyboard.getRows() == null) {
+			return;
+		}
+		final List<Key> keys = keyboard.getKeys();
+		for (int i = 0; i < keys.size(); i++) {
+			if (keys.get(i).iconPreview != null) {
+				Log.i(TAG, "Layout " + Integer.toHexString(layoutResId)
+						+ " has preview icons, not compiled");
+				return;
+			}
+		}
+		// What the keyboard was parsed for, the display may have changed since
+		final int keyHeight = keyboard.getParsedKeyHeight();
+		final File file = getFile(context, layoutResId, keyHeight);
+		try {
+			write(keyboard, file, layoutResId, getPackageTime(context), keyHeight,
+					keyboard.getParsedDisplayWidth());
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write " + file, e);
+			file.delete();
+		}
+	}
+
+	private static File getFile(Context context, int layoutResId, int keyHeight) {
+		// One file per key height, it changes with orientation
+		return new File(context.getCacheDir(),
+				"layout_" + Integer.toHexString(layoutResId) + "_" + keyHeight + ".bin");
+	}
+
+	/**
+	 * Returns when the application package was installed, any reinstall can have
+	 * changed the layouts even if the version code stays the same.
+	 */
+	private static synchronized long getPackageTime(Context context) {
+		if (sPackageTime == 0) {
+			sPackageTime = new File(context.getPackageCodePath()).lastModified();
+		}
+		return sPackageTime;
+	}
+
+	private static LatinKeyboard read(Context context, File file, int layoutResId,
+			long packageTime, int keyHeight, int displayWidth) throws IOException {
+		final byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < data.length) {
+				int r = in.read(data, n, data.length - n);
+				if (r < 0)
+					throw new IOException("Unexpected end of file");
+				n += r;
+			}
+		} finally {
+			in.close();
+		}
+
+		final ByteBuffer buf = ByteBuffer.wrap(data);
+		if (buf.getInt() != MAGIC || buf.getShort() != FORMAT_VERSION
+				|| buf.getLong() != packageTime || buf.getInt() != layoutResId
+				|| buf.getInt() != keyHeight) {
+			// Stale, compile again
+			return null;
+		}
+		final int builtWidth = buf.getInt();
+		final int width = scale(buf.getInt(), displayWidth, builtWidth);
+		final int height = buf.getInt() + scale(buf.getInt(), displayWidth, builtWidth);
+
+		final Resources res = context.getResources();
+		final LatinKeyboard keyboard = LatinKeyboard.createEmpty(context, width, height);
+		final Row row = new Row(keyboard);
+		final int count = buf.getShort();
+		for (int i = 0; i < count; i++) {
+			final LatinKey key = keyboard.new LatinKey(row);
+			final int x = buf.getShort();
+			final int right = x + buf.getShort();
+			key.x = scale(x, displayWidth, builtWidth);
+			key.width = scale(right, displayWidth, builtWidth) - key.x;
+			key.gap = scale(buf.getShort(), displayWidth, builtWidth);
+			key.y = buf.getShort();
+			key.y += scale(buf.getShort(), displayWidth, builtWidth);
+			key.height = buf.getShort();
+			key.edgeFlags = buf.get();
+			final int flags = buf.get();
+			key.sticky = (flags & FLAG_STICKY) != 0;
+			key.repeatable = (flags & FLAG_REPEATABLE) != 0;
+			key.modifier = (flags & FLAG_MODIFIER) != 0;
+			key.iconResId = buf.getInt();
+			if (key.iconResId != 0) {
+				key.icon = res.getDrawable(key.iconResId);
+				key.icon.setBounds(0, 0,
+						key.icon.getIntrinsicWidth(), key.icon.getIntrinsicHeight());
+			} else {
+				key.icon = null;
+			}
+			key.codes = new int[buf.get()];
+			for (int c = 0; c < key.codes.length; c++) {
+				key.codes[c] = buf.getInt();
+			}
+			key.label = readString(buf);
+			key.text = readString(buf);
+			key.popupCharacters = readString(buf);
+			key.popupResId = buf.getInt();
+			keyboard.addKey(key);
+		}
+		return keyboard;
+	}
+
+	private static String readString(ByteBuffer buf) {
+		final int length = buf.getShort();
+		if (length < 0) {
+			return null;
+		}
+		final char[] chars = new char[length];
+		for (int c = 0; c < length; c++) {
+			chars[c] = buf.getChar();
+		}
+		return new String(chars);
+	}
+
+	private static void writeString(DataOutputStream out, CharSequence s)
+			throws IOException {
+		if (s != null) {
+			out.writeShort(s.length());
+			out.writeChars(s.toString());
+		} else {
+			out.writeShort(-1);
+		}
+	}
+
+	/** Rounded v * to / from */
+	private static int scale(int v, int to, int from) {
+		if (to == from || from <= 0) {
+			return v;
+		}
+		return (int) (((long) v * to * 2 + from) / (2L * from));
+	}
+
+	private static void write(LatinKeyboard keyboard, File file, int layoutResId,
+			long packageTime, int keyHeight, int displayWidth) throws IOException {
+		final ArrayList<Row> rows = keyboard.getRows();
+		if (rows == null) {
+			return;
+		}
+		// Top of each row split in the sum of row heights above it and the rest,
+		// which is the width dependent vertical gaps
+		final int[] rowTopFixed = new int[rows.size() + 1];
+		for (int r = 0; r < rows.size(); r++) {
+			rowTopFixed[r + 1] = rowTopFixed[r] + rows.get(r).defaultHeight;
+		}
+		final int heightFixed = rowTopFixed[rows.size()];
+
+		final List<Key> keys = keyboard.getKeys();
+		final File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+		try {
+			out.writeInt(MAGIC);
+			out.writeShort(FORMAT_VERSION);
+			out.writeLong(packageTime);
+			out.writeInt(layoutResId);
+			out.writeInt(keyHeight);
+			out.writeInt(displayWidth);
+			out.writeInt(keyboard.getMinWidth());
+			out.writeInt(heightFixed);
+			out.writeInt(keyboard.getHeight() - heightFixed);
+			out.writeShort(keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				final LatinKey key = (LatinKey) keys.get(i);
+				final int yFixed = rowTopFixed[key.row];
+				out.writeShort(key.x);
+				out.writeShort(key.width);
+				out.writeShort(key.gap);
+				out.writeShort(yFixed);
+				out.writeShort(key.y - yFixed);
+				out.writeShort(key.height);
+				out.writeByte(key.edgeFlags);
+				out.writeByte((key.sticky ? FLAG_STICKY : 0)
+						| (key.repeatable ? FLAG_REPEATABLE : 0)
+						| (key.modifier ? FLAG_MODIFIER : 0));
+				out.writeInt(key.iconResId);
+				out.writeByte(key.codes.length);
+				for (int c = 0; c < key.codes.length; c++) {
+					out.writeInt(key.codes[c]);
+				}
+				writeString(out, key.label);
+				writeString(out, key.text);
+				writeString(out, key.popupCharacters);
+				out.writeInt(key.popupResId);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not rename " + tmp);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+/**
+ * Composes accented letters from dead keys. Composing is a state machine whose
+ * transitions are all in one table, built once, so each keystroke is a single
+ * array lookup.
+ *
+ * A dead key starts one of the accent states. The next character either composes
+ * with it or ends composing. Space gives the accent itself. The accented letters
+ * are those of the platform's KeyEvent.getDeadChar() table, every ASCII letter with
+ * a precomposed form, kept here so that the table does not depend on the platform
+ * version and can be built outside Android.
+ *
+ * Pressing the same dead key twice starts a compose sequence of two more
+ * characters, for the Western European letters that have no accent:
+ * <pre>
+ * ae &aelig;  oe &oelig;  o/ &oslash;  aa &aring;  ss &szlig;
+ * dh &eth;   th &thorn;  ,c &ccedil;  (and the upper case ones)
+ * ?? &iquest;  !! &iexcl;  &lt;&lt; &laquo;  &gt;&gt; &raquo;
+ * </pre>
+ *
+ * A table entry is 0 if the character does not compose, a state below
+ * {@link #MAX_STATES} if composing goes on, otherwise the composed character.
+ */
+public class ComposeTable {
+
+	/** Not composing */
+	public static final int NONE = 0;
+
+	private static final char[] ACCENTS = { '\u00b4', '`', '\u00a8', '^', '~' };
+	private static final int COMPOSE = ACCENTS.length + 1;
+
+	/** Letter and accented letter pairs for each accent in ACCENTS */
+	private static final String[] ACCENTED = {
+		"A\u00c1C\u0106E\u00c9G\u01f4I\u00cdK\u1e30L\u0139M\u1e3eN\u0143O\u00d3P\u1e54"
+		+ "R\u0154S\u015aU\u00daW\u1e82Y\u00ddZ\u0179a\u00e1c\u0107e\u00e9g\u01f5i\u00ed"
+		+ "k\u1e31l\u013am\u1e3fn\u0144o\u00f3p\u1e55r\u0155s\u015bu\u00faw\u1e83y\u00fd"
+		+ "z\u017a",
+		"A\u00c0E\u00c8I\u00ccN\u01f8O\u00d2U\u00d9W\u1e80Y\u1ef2a\u00e0e\u00e8i\u00ec"
+		+ "n\u01f9o\u00f2u\u00f9w\u1e81y\u1ef3",
+		"A\u00c4E\u00cbH\u1e26I\u00cfO\u00d6U\u00dcW\u1e84X\u1e8cY\u0178a\u00e4e\u00eb"
+		+ "h\u1e27i\u00efo\u00f6t\u1e97u\u00fcw\u1e85x\u1e8dy\u00ff",
+		"A\u00c2C\u0108E\u00caG\u011cH\u0124I\u00ceJ\u0134O\u00d4S\u015cU\u00dbW\u0174"
+		+ "Y\u0176Z\u1e90a\u00e2c\u0109e\u00eag\u011dh\u0125i\u00eej\u0135o\u00f4s\u015d"
+		+ "u\u00fbw\u0175y\u0177z\u1e91",
+		"A\u00c3E\u1ebcI\u0128N\u00d1O\u00d5U\u0168V\u1e7cY\u1ef8a\u00e3e\u1ebdi\u0129"
+		+ "n\u00f1o\u00f5u\u0169v\u1e7dy\u1ef9"
+	};
+
+	/** States are stored as characters in the table, below any composed character */
+	private static final int MAX_STATES = 0x20;
+	/** Characters that can take part in composing, Latin-1 */
+	private static final int FIRST_CHAR = 0x20;
+	private static final int CHAR_COUNT = 0x100 - FIRST_CHAR;
+
+	private static final String[] SEQUENCES = {
+		"ae\u00e6", "AE\u00c6", "oe\u0153", "OE\u0152", "o/\u00f8", "O/\u00d8",
+		"aa\u00e5", "AA\u00c5", "ss\u00df", "dh\u00f0", "DH\u00d0", "th\u00fe",
+		"TH\u00de", ",c\u00e7", ",C\u00c7", "??\u00bf", "!!\u00a1", "<<\u00ab",
+		">>\u00bb"
+	};
+
+	private static final char[] sTable = new char[MAX_STATES * CHAR_COUNT];
+	/** Text shown while in a state */
+	private static final char[] sPending = new char[MAX_STATES];
+	private static int sStateCount;
+
+	static {
+		sStateCount = COMPOSE + 1;
+		sPending[COMPOSE] = '\u00b7';
+		for (int a = 0; a < ACCENTS.length; a++) {
+			final int state = a + 1;
+			final char accent = ACCENTS[a];
+			sPending[state] = accent;
+			final String accented = ACCENTED[a];
+			for (int i = 0; i < accented.length(); i += 2) {
+				put(state, accented.charAt(i), accented.charAt(i + 1));
+			}
+			put(state, ' ', accent);
+			put(state, accent, (char) COMPOSE);
+		}
+
+		for (int i = 0; i < SEQUENCES.length; i++) {
+			final String sequence = SEQUENCES[i];
+			int state = COMPOSE;
+			for (int j = 0; j < sequence.length() - 2; j++) {
+				final char c = sequence.charAt(j);
+				int next = sTable[state * CHAR_COUNT + c - FIRST_CHAR];
+				if (next == 0) {
+					next = sStateCount++;
+					if (next >= MAX_STATES) {
+						throw new IllegalStateException("Too many compose states");
+					}
+					sPending[next] = c;
+					put(state, c, (char) next);
+				}
+				state = next;
+			}
+			put(state, sequence.charAt(sequence.length() - 2),
+					sequence.charAt(sequence.length() - 1));
+		}
+	}
+
+	private static void put(int state, int c, char value) {
+		sTable[state * CHAR_COUNT + c - FIRST_CHAR] = value;
+	}
+
+	/**
+	 * Returns the state after a dead key, or {@link #NONE} if the character is not
+	 * a dead key accent.
+	 */
+	public static int getAccentState(char accent) {
+		for (int a = 0; a < ACCENTS.length; a++) {
+			if (ACCENTS[a] == accent) {
+				return a + 1;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Looks up the next step of composing.
+	 * @param state current state, not {@link #NONE}
+	 * @param c character typed, or the accent of a dead key
+	 * @return 0 if c does not compose, a state if it is checked with
+	 * {@link #isState}, otherwise the composed character
+	 */
+	public static int compose(int state, int c) {
+		if (c < FIRST_CHAR || c >= 0x100) {
+			return 0;
+		}
+		return sTable[state * CHAR_COUNT + c - FIRST_CHAR];
+	}
+
+	/** Whether a result of {@link #compose} is a state */
+	public static boolean isState(int result) {
+		return result > 0 && result < MAX_STATES;
+	}
+
+	/** Character shown as composing text while in a state */
+	public static char getPendingChar(int state) {
+		return sPending[state];
+	}
+
+	/**
+	 * Character kept when composing ends without a result, 0 for none. Only an
+	 * accent stands for itself, characters of a compose sequence are dropped.
+	 */
+	public static char getUncomposedChar(int state) {
+		return state <= ACCENTS.length ? sPending[state] : 0;
+	}
+}
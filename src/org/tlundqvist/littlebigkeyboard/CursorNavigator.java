@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.view.inputmethod.ExtractedText;
+import android.view.inputmethod.ExtractedTextRequest;
+import android.view.inputmethod.InputConnection;
+
+/**
+ * Local copy of the document text around the cursor, for moving the cursor to line
+ * and document boundaries with one setSelection() instead of a stream of arrow key
+ * events.
+ *
+ * The text is read with getExtractedText() when first needed. After that own edits
+ * are applied to the copy as they are sent, so typing keeps it valid. Any other
+ * change reported by the editor, apart from the cursor moves made here, means the
+ * text may have changed under us and the copy is dropped until next time.
+ *
+ * Updated through {@link TextContext}, which sees all own edits.
+ */
+public class CursorNavigator {
+
+	/** Characters asked for around the cursor, editors may send more */
+	private static final int WINDOW = 4096;
+	/** Characters read past the window to find the end of a long line */
+	private static final int LONG_LINE = 8 * WINDOW;
+
+	private final StringBuilder mText = new StringBuilder();
+	/** Document offset of the first character in mText */
+	private int mStart;
+	/** Document offset of the cursor */
+	private int mCursor;
+	/** Whether mText holds valid text */
+	private boolean mValid;
+	/** Whether mText ends at the end of the document */
+	private boolean mAtEnd;
+	/** Cursor position set here and not yet reported by the editor, or -1 */
+	private int mExpectedCursor = -1;
+
+	/** Statistics */
+	private int mMoves;
+	private int mReads;
+
+	/**
+	 * Forgets the local text, it is read from the editor when needed.
+	 */
+	public void invalidate() {
+		mValid = false;
+		mExpectedCursor = -1;
+	}
+
+	/**
+	 * Called after text has been committed at the cursor.
+	 */
+	void onCommitted(CharSequence text) {
+		if (mValid) {
+			mText.insert(mCursor - mStart, text);
+			mCursor += text.length();
+			trim();
+		}
+	}
+
+	/**
+	 * Called after characters before the cursor have been deleted.
+	 */
+	void onDeleted(int count) {
+		if (mValid) {
+			count = Math.min(count, mCursor);
+			if (count > mCursor - mStart) {
+				// Past the start of the window
+				invalidate();
+				return;
+			}
+			mText.delete(mCursor - mStart - count, mCursor - mStart);
+			mCursor -= count;
+		}
+	}
+
+	/**
+	 * Called with each selection update from the editor.
+	 * @param ownEdit whether the update was caused by own edits, which have already
+	 * been applied
+	 */
+	void onUpdateSelection(int newSelStart, int newSelEnd, boolean ownEdit) {
+		if (newSelStart != newSelEnd) {
+			invalidate();
+		} else if (newSelStart == mExpectedCursor) {
+			mExpectedCursor = -1;
+		} else if (!ownEdit) {
+			invalidate();
+		}
+	}
+
+	/**
+	 * Moves the cursor a number of characters, stopping at the ends of the document
+	 * like the arrow keys do. Only done when the text around the cursor is known
+	 * already, the editor is not asked for it.
+	 * @param delta characters to move, negative to the left
+	 * @return false if the cursor or the end it would stop at is not known, nothing
+	 * was done then
+	 */
+	public boolean moveBy(int delta, InputConnection ic) {
+		if (!mValid) {
+			return false;
+		}
+		int offset = mCursor + delta;
+		if (offset < mStart) {
+			if (mStart > 0) {
+				return false;
+			}
+			offset = 0;
+		} else if (offset > mStart + mText.length()) {
+			if (!mAtEnd) {
+				return false;
+			}
+			offset = mStart + mText.length();
+		}
+		moveTo(offset, ic);
+		return true;
+	}
+
+	/**
+	 * Moves the cursor to the start of its line, or to the start of the document if
+	 * it is there already.
+	 * @return false if the text could not be read from the editor, or the line
+	 * starts too far back
+	 */
+	public boolean moveToLineStart(InputConnection ic) {
+		if (!read(ic)) {
+			return false;
+		}
+		final int cursor = mCursor - mStart;
+		final int newline = cursor > 0 ? mText.lastIndexOf("\n", cursor - 1) : -1;
+		final int lineStart;
+		if (newline >= 0 || mStart == 0) {
+			lineStart = mStart + newline + 1;
+		} else {
+			// The line starts before the window
+			lineStart = findLineStart(ic);
+			if (lineStart < 0) {
+				return false;
+			}
+		}
+		moveTo(lineStart != mCursor ? lineStart : 0, ic);
+		return true;
+	}
+
+	/**
+	 * Moves the cursor to the end of its line, or to the end of the document if it
+	 * is there already.
+	 * @return false if the text could not be read from the editor, or the end is
+	 * too far ahead
+	 */
+	public boolean moveToLineEnd(InputConnection ic) {
+		if (!read(ic)) {
+			return false;
+		}
+		final int newline = mText.indexOf("\n", mCursor - mStart);
+		int target;
+		if (newline >= 0 && mStart + newline != mCursor) {
+			target = mStart + newline;
+		} else if (mAtEnd) {
+			target = mStart + mText.length();
+		} else {
+			// The line or the document ends after the window
+			target = findEnd(ic, newline < 0);
+			if (target < 0) {
+				return false;
+			}
+		}
+		moveTo(target, ic);
+		return true;
+	}
+
+	/**
+	 * Moves the cursor to the start of the word before it, like ctrl-left. A word
+	 * is a run of letters and digits or a run of other characters that are not
+	 * white space.
+	 * @return false if the text could not be read from the editor, or the word
+	 * starts before the local text
+	 */
+	public boolean moveToWordStart(InputConnection ic) {
+		if (!read(ic)) {
+			return false;
+		}
+		int i = mCursor - mStart;
+		while (i > 0 && Character.isWhitespace(mText.charAt(i - 1)))
+			i--;
+		if (i > 0) {
+			final boolean letters = Character.isLetterOrDigit(mText.charAt(i - 1));
+			while (i > 0 && !Character.isWhitespace(mText.charAt(i - 1))
+					&& Character.isLetterOrDigit(mText.charAt(i - 1)) == letters)
+				i--;
+		}
+		if (i == 0 && mStart > 0) {
+			return false;
+		}
+		moveTo(mStart + i, ic);
+		return true;
+	}
+
+	/**
+	 * Moves the cursor to the end of the word after it, like ctrl-right.
+	 * @return false if the text could not be read from the editor, or the word
+	 * ends after the local text
+	 * @see #moveToWordStart
+	 */
+	public boolean moveToWordEnd(InputConnection ic) {
+		if (!read(ic)) {
+			return false;
+		}
+		final int length = mText.length();
+		int i = mCursor - mStart;
+		while (i < length && Character.isWhitespace(mText.charAt(i)))
+			i++;
+		if (i < length) {
+			final boolean letters = Character.isLetterOrDigit(mText.charAt(i));
+			while (i < length && !Character.isWhitespace(mText.charAt(i))
+					&& Character.isLetterOrDigit(mText.charAt(i)) == letters)
+				i++;
+		}
+		if (i == length && !mAtEnd) {
+			return false;
+		}
+		moveTo(mStart + i, ic);
+		return true;
+	}
+
+	/**
+	 * Looks for the start of a line longer than the window, in one read.
+	 * @return its offset, or -1 if it is too far back
+	 */
+	private int findLineStart(InputConnection ic) {
+		mReads++;
+		final CharSequence before = ic.getTextBeforeCursor(LONG_LINE, 0);
+		if (before == null) {
+			return -1;
+		}
+		final int n = before.length();
+		for (int i = n - 1; i >= 0; i--) {
+			if (before.charAt(i) == '\n') {
+				return mCursor - n + i + 1;
+			}
+		}
+		// Less than asked for is all there is, the document start
+		return n < LONG_LINE ? mCursor - n : -1;
+	}
+
+	/**
+	 * Looks past the window for the end of the line or the document, in one read.
+	 * @param line whether the end of the line is looked for
+	 * @return its offset, or -1 if it is too far ahead
+	 */
+	private int findEnd(InputConnection ic, boolean line) {
+		mReads++;
+		final CharSequence after = ic.getTextAfterCursor(LONG_LINE, 0);
+		if (after == null) {
+			return -1;
+		}
+		final int n = after.length();
+		if (line) {
+			int i = 0;
+			while (i < n && after.charAt(i) != '\n')
+				i++;
+			if (i > 0 && i < n) {
+				return mCursor + i;
+			}
+			// At the end of the line already, or it ends with the document
+		}
+		return n < LONG_LINE ? mCursor + n : -1;
+	}
+
+	private void moveTo(int offset, InputConnection ic) {
+		if (offset == mCursor) {
+			return;
+		}
+		mMoves++;
+		ic.setSelection(offset, offset);
+		if (offset < mStart || offset > mStart + mText.length()) {
+			invalidate();
+		}
+		mCursor = offset;
+		mExpectedCursor = offset;
+	}
+
+	private boolean read(InputConnection ic) {
+		if (mValid) {
+			return true;
+		}
+		mReads++;
+		final ExtractedTextRequest request = new ExtractedTextRequest();
+		request.hintMaxChars = WINDOW;
+		final ExtractedText extracted = ic.getExtractedText(request, 0);
+		if (extracted == null || extracted.text == null
+				|| extracted.selectionStart != extracted.selectionEnd
+				|| extracted.selectionStart < 0) {
+			return false;
+		}
+		mText.setLength(0);
+		mText.append(extracted.text);
+		mStart = extracted.startOffset;
+		mCursor = mStart + extracted.selectionStart;
+		// Editors that honour the hint send no more than asked for
+		mAtEnd = mText.length() < WINDOW;
+		mValid = mCursor <= mStart + mText.length();
+		if (mValid) {
+			trim();
+		}
+		return mValid;
+	}
+
+	/**
+	 * Keeps no more than the window around the cursor, half of it on each side
+	 * unless one side is shorter. Editors that ignore the hint send the whole
+	 * document, and inserting into that on every keystroke would be slow.
+	 */
+	private void trim() {
+		final int length = mText.length();
+		if (length <= WINDOW) {
+			return;
+		}
+		final int start = Math.max(0, Math.min(mCursor - mStart - WINDOW / 2, length - WINDOW));
+		if (start + WINDOW < length) {
+			mText.setLength(start + WINDOW);
+			mAtEnd = false;
+		}
+		if (start > 0) {
+			mText.delete(0, start);
+			mStart += start;
+		}
+	}
+
+	/** Number of cursor jumps */
+	public int getMoveCount() {
+		return mMoves;
+	}
+
+	/** Number of times the text was read from the editor */
+	public int getReadCount() {
+		return mReads;
+	}
+}
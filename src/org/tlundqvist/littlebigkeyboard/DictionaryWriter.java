@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds a {@link WordDictionary} file from words and their frequencies. Identical
+ * subtrees are written once, which turns the trie into a DAWG.
+ *
+ * Plain Java without Android classes, it is also used by tools/MakeDictionary.java.
+ */
+public class DictionaryWriter {
+
+	static final int MAGIC = 0x4c424b44; // "LBKD"
+	/** Increase when the format changes */
+	static final short FORMAT_VERSION = 1;
+	static final int HEADER_SIZE = 12;
+
+	private static class Node {
+		final TreeMap<Character, Node> children = new TreeMap<Character, Node>();
+		int frequency;
+		int maxFrequency;
+		int offset;
+	}
+
+	private final Node mRoot = new Node();
+	private int mWordCount;
+
+	/**
+	 * Adds a word, in lower case. Adding a word again keeps the highest frequency.
+	 * @param frequency 1-255, higher is more common
+	 */
+	public void add(CharSequence word, int frequency) {
+		Node node = mRoot;
+		for (int i = 0; i < word.length(); i++) {
+			final Character c = Character.valueOf(Character.toLowerCase(word.charAt(i)));
+			Node child = node.children.get(c);
+			if (child == null) {
+				child = new Node();
+				node.children.put(c, child);
+			}
+			node = child;
+		}
+		if (node.frequency == 0) {
+			mWordCount++;
+		}
+		node.frequency = Math.max(node.frequency, Math.max(1, Math.min(255, frequency)));
+	}
+
+	/** Number of different words added */
+	public int getWordCount() {
+		return mWordCount;
+	}
+
+	/**
+	 * Writes the dictionary.
+	 */
+	public void write(OutputStream stream) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeShort(FORMAT_VERSION);
+		out.writeShort(0);
+		out.writeInt(0); // root offset, filled in below
+		final int root = write(mRoot, out, new HashMap<String, Integer>());
+		out.close();
+
+		final byte[] data = bytes.toByteArray();
+		data[8] = (byte) (root >>> 24);
+		data[9] = (byte) (root >>> 16);
+		data[10] = (byte) (root >>> 8);
+		data[11] = (byte) root;
+		stream.write(data);
+	}
+
+	/**
+	 * Writes the children of a node before the node itself, so that their offsets
+	 * are known. A node equal to one already written is not written again.
+	 * @return offset of the node
+	 */
+	private static int write(Node node, DataOutputStream out, Map<String, Integer> written)
+			throws IOException {
+		final StringBuilder key = new StringBuilder();
+		for (Map.Entry<Character, Node> e : node.children.entrySet()) {
+			final Node child = e.getValue();
+			child.offset = child.children.isEmpty() ? 0 : write(child, out, written);
+			child.maxFrequency = child.frequency;
+			for (Node grandChild : child.children.values()) {
+				child.maxFrequency = Math.max(child.maxFrequency, grandChild.maxFrequency);
+			}
+			key.append(e.getKey().charValue()).append(child.frequency).append(',')
+					.append(child.maxFrequency).append(',').append(child.offset).append(';');
+		}
+		final Integer existing = written.get(key.toString());
+		if (existing != null) {
+			return existing.intValue();
+		}
+		final int offset = out.size();
+		out.writeShort(node.children.size());
+		for (Map.Entry<Character, Node> e : node.children.entrySet()) {
+			final Node child = e.getValue();
+			out.writeChar(e.getKey().charValue());
+			out.writeByte(child.frequency);
+			out.writeByte(child.maxFrequency);
+			out.writeInt(child.offset);
+		}
+		written.put(key.toString(), Integer.valueOf(offset));
+		return offset;
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+/**
+ * What the special keys do. Special key codes are negative and few, so the actions
+ * are kept in an array indexed by -code and finding one is a single array read.
+ */
+public class KeyActionTable {
+
+	/**
+	 * What a special key does, see {@link KeyActionTable#set}.
+	 */
+	public interface KeyAction {
+		/**
+		 * @param count number of presses, more than one when key repeats are
+		 * coalesced. Actions that make no sense repeated may ignore it.
+		 */
+		void perform(int count);
+	}
+
+	/** Special key codes are negative, from -1 down to this */
+	public static final int MIN_KEYCODE = -127;
+
+	/** Special key actions indexed by -code */
+	private final KeyAction[] mActions = new KeyAction[-MIN_KEYCODE + 1];
+
+	/**
+	 * Sets what a special key does, replacing any earlier action.
+	 * @param code negative key code, down to {@link #MIN_KEYCODE}
+	 * @param action null for nothing
+	 */
+	public void set(int code, KeyAction action) {
+		if (code >= 0 || code < MIN_KEYCODE) {
+			throw new IllegalArgumentException("Not a special key code: " + code);
+		}
+		mActions[-code] = action;
+	}
+
+	/**
+	 * Performs the action of a special key.
+	 * @return false if the key has no action
+	 */
+	public boolean perform(int code, int count) {
+		final KeyAction action = code < 0 && code >= MIN_KEYCODE ? mActions[-code] : null;
+		if (action == null) {
+			return false;
+		}
+		action.perform(count);
+		return true;
+	}
+}
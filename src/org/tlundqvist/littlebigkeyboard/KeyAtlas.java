@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.graphics.Paint.Align;
+import android.graphics.drawable.Drawable;
+
+import org.tlundqvist.littlebigkeyboard.LatinKeyboard.LatinKey;
+
+/**
+ * Pre-rendered images of the keys of one {@link LatinKeyboard}. Each key is
+ * rasterized at most once per visual state (released, pressed and pressed with
+ * one of the five letters highlighted), after that drawing a key is a single
+ * bitmap copy.
+ *
+ * Cells are rendered lazily the first time a state is needed, and re-rendered
+ * if the key size or its sticky/caps lock look changes.
+ */
+public class KeyAtlas {
+
+	/** Key is released */
+	public static final int STATE_NORMAL      = 0;
+	/** Key is pressed but no letter is selected */
+	public static final int STATE_PRESSED     = 1;
+	/** Key is pressed and letter (code index) 0..4 is selected */
+	public static final int STATE_HIGHLIGHT_0 = 2;
+	public static final int STATE_COUNT       = 7;
+
+	private static final int VARIANT_ON   = 1;
+	private static final int VARIANT_LOCK = 2;
+
+	private static final int COLOR_NORMAL  = 0xffe0e0e0;
+	private static final int COLOR_CURRENT = 0xffff0000;
+
+	private final LatinKey[] mKeys;
+	/** Cell bitmaps, indexed by key index * STATE_COUNT + state */
+	private final Bitmap[] mCells;
+	/** Sticky/caps lock variant the cells of each key were rendered with */
+	private final int[] mVariant;
+
+	private final Drawable mKeyBackground;
+	private final Paint mPaint;
+	private final Rect mPadding = new Rect(0, 0, 0, 0);
+	private Canvas mCanvas;
+
+	public KeyAtlas(Resources res, LatinKeyboard keyboard) {
+		mKeys = keyboard.getKeyArray();
+		mCells = new Bitmap[mKeys.length * STATE_COUNT];
+		mVariant = new int[mKeys.length];
+		mKeyBackground = res.getDrawable(R.drawable.key_background);
+		mPaint = new Paint();
+		mPaint.setAntiAlias(true);
+		mPaint.setTypeface(Typeface.DEFAULT);
+	}
+
+	/**
+	 * Returns the atlas state for a key given its currently selected letter.
+	 * @param index key index
+	 * @param codeIndex selected letter (code index) or -1 if none
+	 */
+	public int getState(int index, int codeIndex) {
+		final LatinKey key = mKeys[index];
+		if (!key.pressed) {
+			return STATE_NORMAL;
+		}
+		if (codeIndex < 0 || key.label == null) {
+			// Icon keys look the same whatever code index is selected
+			return STATE_PRESSED;
+		}
+		return STATE_HIGHLIGHT_0 + codeIndex;
+	}
+
+	/**
+	 * Copies the image of a key onto the canvas, rendering it first if needed.
+	 * @param canvas canvas to draw on
+	 * @param index key index
+	 * @param codeIndex selected letter (code index) or -1 if none
+	 * @param capsLock whether caps lock is shown on the shift key
+	 * @param x left edge of the key on the canvas
+	 * @param y top edge of the key on the canvas
+	 */
+	public void drawKey(Canvas canvas, int index, int codeIndex, boolean capsLock, int x, int y) {
+		final Bitmap cell = getCell(index, getState(index, codeIndex), capsLock);
+		canvas.drawBitmap(cell, x, y, null);
+	}
+
+	/**
+	 * Returns a value identifying how a key looks right now. Two calls return the
+	 * same value only if the key would be drawn identically.
+	 * @param index key index
+	 * @param codeIndex selected letter (code index) or -1 if none
+	 * @param capsLock whether caps lock is shown on the shift key
+	 */
+	public int getLook(int index, int codeIndex, boolean capsLock) {
+		return getState(index, codeIndex) | getVariant(index, capsLock) << 8;
+	}
+
+	private int getVariant(int index, boolean capsLock) {
+		final LatinKey key = mKeys[index];
+		int variant = 0;
+		if (key.on)
+			variant |= VARIANT_ON;
+		if (capsLock && key.codes[0] == LatinKeyboard.KEYCODE_SHIFT)
+			variant |= VARIANT_LOCK;
+		return variant;
+	}
+
+	private Bitmap getCell(int index, int state, boolean capsLock) {
+		final LatinKey key = mKeys[index];
+		final int variant = getVariant(index, capsLock);
+		if (mVariant[index] != variant) {
+			// Look of the key changed, all its states must be rendered again
+			for (int s = 0; s < STATE_COUNT; s++) {
+				forget(index * STATE_COUNT + s);
+			}
+			mVariant[index] = variant;
+		}
+
+		final int cellIndex = index * STATE_COUNT + state;
+		Bitmap cell = mCells[cellIndex];
+		if (cell != null &&
+				(cell.getWidth() != key.width || cell.getHeight() != key.height)) {
+			cell.recycle();
+			cell = null;
+		}
+		if (cell == null) {
+			cell = Bitmap.createBitmap(Math.max(1, key.width), Math.max(1, key.height),
+					Bitmap.Config.ARGB_8888);
+			if (mCanvas == null) {
+				mCanvas = new Canvas();
+			}
+			mCanvas.setBitmap(cell);
+			mCanvas.drawColor(0x00000000, PorterDuff.Mode.CLEAR);
+			renderKey(mCanvas, key, state, (variant & VARIANT_LOCK) != 0);
+			mCells[cellIndex] = cell;
+		}
+		return cell;
+	}
+
+	private void forget(int cellIndex) {
+		if (mCells[cellIndex] != null) {
+			mCells[cellIndex].recycle();
+			mCells[cellIndex] = null;
+		}
+	}
+
+	/**
+	 * Returns the memory used by the rendered cells.
+	 */
+	public int getByteCount() {
+		int bytes = 0;
+		for (int i = 0; i < mCells.length; i++) {
+			if (mCells[i] != null) {
+				bytes += mCells[i].getRowBytes() * mCells[i].getHeight();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Releases all rendered cells. They will be rendered again when needed.
+	 */
+	public void clear() {
+		for (int i = 0; i < mCells.length; i++) {
+			forget(i);
+		}
+	}
+
+	private void renderKey(Canvas canvas, LatinKey key, int state, boolean capsLock) {
+		final int currentcodeindex = state - STATE_HIGHLIGHT_0;
+		final Drawable keyBackground = mKeyBackground;
+		keyBackground.setState(key.getCurrentDrawableState());
+		keyBackground.setBounds(0, 0, key.width, key.height);
+		keyBackground.draw(canvas);
+
+		final String label = key.label == null? null : key.label.toString();
+		final Rect padding = mPadding;
+		final Paint paint = mPaint;
+
+		int centerX = (key.width - padding.left - padding.right) / 2 + padding.left;
+		int centerY = (key.height - padding.top - padding.bottom) / 2 + padding.top;
+		int marginX = key.width / 10;
+		int marginY = key.height / 16;
+
+		paint.setTextAlign(Align.CENTER);
+		if (label != null) {
+			// Draw the text
+			paint.setTextSize(20);
+			paint.setColor(currentcodeindex == 0 ? COLOR_CURRENT : COLOR_NORMAL);
+			canvas.drawText(label.substring(0, 1),
+					centerX, centerY + (paint.getTextSize() - paint.descent()) / 2,
+					paint);
+			if (key.codes.length == 5) {
+				// Draw more side letters
+				paint.setTextAlign(Align.LEFT);
+				paint.setTextSize(12);
+				paint.setColor(currentcodeindex == 1 ? COLOR_CURRENT : COLOR_NORMAL);
+				canvas.drawText(label.substring(1,2), padding.left + marginX,
+						centerY + (paint.getTextSize() - paint.descent()) / 2, paint);
+				paint.setTextAlign(Align.RIGHT);
+				paint.setColor(currentcodeindex == 3 ? COLOR_CURRENT : COLOR_NORMAL);
+				canvas.drawText(label.substring(3,4),
+						key.width - marginX - padding.right,
+						centerY + (paint.getTextSize() - paint.descent()) / 2, paint);
+				paint.setTextAlign(Align.CENTER);
+				paint.setColor(currentcodeindex == 2 ? COLOR_CURRENT : COLOR_NORMAL);
+				canvas.drawText(label.substring(2,3), centerX,
+						padding.top + marginY + paint.getTextSize(),
+						paint);
+				paint.setColor(currentcodeindex == 4 ? COLOR_CURRENT : COLOR_NORMAL);
+				canvas.drawText(label.substring(4,5), centerX,
+						key.height - marginY - padding.bottom - paint.descent(),
+						paint);
+			}
+		} else if (key.icon != null) {
+			final int drawableX = (key.width - padding.left - padding.right
+					- key.icon.getIntrinsicWidth()) / 2 + padding.left;
+			final int drawableY = (key.height - padding.top - padding.bottom
+					- key.icon.getIntrinsicHeight()) / 2 + padding.top;
+			canvas.translate(drawableX, drawableY);
+			key.icon.setBounds(0, 0,
+					key.icon.getIntrinsicWidth(), key.icon.getIntrinsicHeight());
+			key.icon.draw(canvas);
+			canvas.translate(-drawableX, -drawableY);
+
+			if (capsLock) {
+				// Special handling of caps lock
+				final String lock = "LOCK";
+				paint.setTextSize(12);
+				paint.setColor(COLOR_NORMAL);
+				canvas.drawText(lock, centerX, padding.top + marginY + paint.getTextSize(), paint);
+			}
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.inputmethodservice.Keyboard;
+import android.inputmethodservice.Keyboard.Key;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Precomputed touch lookup for one {@link LatinKeyboard}. Resolving which key and
+ * which letter of a key a touch point hits is a couple of array reads, without
+ * allocations.
+ *
+ * The keyboard is cut into bands at every key edge, both horizontally and
+ * vertically. Inside a cell formed by one horizontal and one vertical band the
+ * result of {@link Key#isInside} is the same for every point, so the key for each
+ * cell is computed once up front. The result is identical to asking
+ * {@link Keyboard#getNearestKeys} for candidates and testing them with isInside.
+ *
+ * Coordinates given to the lookups are relative to the top left of the keyboard
+ * before the vertical touch correction is applied, the correction is part of the
+ * grid.
+ */
+public class KeyGrid {
+
+	public static final int NOT_A_KEY = -1;
+
+	/** Values per key in the array given to {@link #KeyGrid(int, int, int[], int)} */
+	public static final int KEY_FIELDS = 6;
+
+	private final int mVerticalCorrection;
+	private final int mWidth;
+	private final int mHeight;
+
+	/** Horizontal band of each x coordinate, 0 <= x < mWidth */
+	private final int[] mColumnOf;
+	/** Vertical band of each corrected y coordinate, 0 <= y < mHeight */
+	private final int[] mRowOf;
+	private final int mColumns;
+	/** Key index of each cell, row * mColumns + column */
+	private final int[] mCells;
+
+	/** Key bounds and edge flags, in corrected coordinates */
+	private final int[] mLeft;
+	private final int[] mTop;
+	private final int[] mRight;
+	private final int[] mBottom;
+	private final int[] mEdgeFlags;
+	/** Whether the key has side letters */
+	private final boolean[] mSides;
+
+	/**
+	 * Builds the grid for a keyboard.
+	 * @param keyboard the keyboard
+	 * @param verticalCorrection offset added to y before looking up keys
+	 */
+	public KeyGrid(Keyboard keyboard, int verticalCorrection) {
+		this(keyboard.getMinWidth(), keyboard.getHeight(), getKeyFields(keyboard.getKeys()),
+				verticalCorrection);
+	}
+
+	/**
+	 * Builds the grid from key bounds, without a {@link Keyboard}.
+	 * @param width keyboard width
+	 * @param height keyboard height
+	 * @param keys for each key in order, {@link #KEY_FIELDS} values: x, y, width,
+	 * height, edge flags and the number of codes
+	 * @param verticalCorrection offset added to y before looking up keys
+	 */
+	public KeyGrid(int width, int height, int[] keys, int verticalCorrection) {
+		mVerticalCorrection = verticalCorrection;
+		mWidth = Math.max(0, width);
+		mHeight = Math.max(0, height);
+
+		final int count = keys.length / KEY_FIELDS;
+		mLeft = new int[count];
+		mTop = new int[count];
+		mRight = new int[count];
+		mBottom = new int[count];
+		mEdgeFlags = new int[count];
+		mSides = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			final int k = i * KEY_FIELDS;
+			mLeft[i] = keys[k];
+			mTop[i] = keys[k + 1];
+			mRight[i] = keys[k] + keys[k + 2];
+			mBottom[i] = keys[k + 1] + keys[k + 3];
+			mEdgeFlags[i] = keys[k + 4];
+			mSides[i] = keys[k + 5] == 5;
+		}
+
+		// isInside() changes value at the key start, at the key end and, for edge
+		// keys, one past the end
+		final int[] xs = bands(mLeft, mRight, mWidth);
+		final int[] ys = bands(mTop, mBottom, mHeight);
+		mColumns = xs.length - 1;
+		final int rows = ys.length - 1;
+		mColumnOf = bandTable(xs, mWidth);
+		mRowOf = bandTable(ys, mHeight);
+
+		mCells = new int[Math.max(0, rows * mColumns)];
+		for (int row = 0; row < rows; row++) {
+			for (int column = 0; column < mColumns; column++) {
+				int found = NOT_A_KEY;
+				for (int i = 0; i < count; i++) {
+					// Last key wins, same as in the getNearestKeys() search
+					if (isInside(i, xs[column], ys[row])) {
+						found = i;
+					}
+				}
+				mCells[row * mColumns + column] = found;
+			}
+		}
+	}
+
+	private static int[] getKeyFields(List<Key> keys) {
+		final int[] fields = new int[keys.size() * KEY_FIELDS];
+		for (int i = 0; i < keys.size(); i++) {
+			final Key key = keys.get(i);
+			final int k = i * KEY_FIELDS;
+			fields[k] = key.x;
+			fields[k + 1] = key.y;
+			fields[k + 2] = key.width;
+			fields[k + 3] = key.height;
+			fields[k + 4] = key.edgeFlags;
+			fields[k + 5] = key.codes.length;
+		}
+		return fields;
+	}
+
+	private static int[] bands(int[] start, int[] end, int size) {
+		final int[] points = new int[start.length * 3 + 2];
+		int n = 0;
+		points[n++] = 0;
+		points[n++] = size;
+		for (int i = 0; i < start.length; i++) {
+			points[n++] = start[i];
+			points[n++] = end[i];
+			points[n++] = end[i] + 1;
+		}
+		Arrays.sort(points, 0, n);
+		// Keep unique points inside [0, size]
+		int unique = 0;
+		for (int i = 0; i < n; i++) {
+			if (points[i] < 0 || points[i] > size)
+				continue;
+			if (unique == 0 || points[unique - 1] != points[i])
+				points[unique++] = points[i];
+		}
+		final int[] result = new int[unique];
+		System.arraycopy(points, 0, result, 0, unique);
+		return result;
+	}
+
+	private static int[] bandTable(int[] points, int size) {
+		final int[] table = new int[size];
+		int band = 0;
+		for (int v = 0; v < size; v++) {
+			while (v >= points[band + 1])
+				band++;
+			table[v] = band;
+		}
+		return table;
+	}
+
+	/**
+	 * Same test as {@link Key#isInside}, on corrected coordinates.
+	 */
+	private boolean isInside(int index, int x, int y) {
+		final int edgeFlags = mEdgeFlags[index];
+		final boolean leftEdge = (edgeFlags & Keyboard.EDGE_LEFT) > 0;
+		final boolean rightEdge = (edgeFlags & Keyboard.EDGE_RIGHT) > 0;
+		final boolean topEdge = (edgeFlags & Keyboard.EDGE_TOP) > 0;
+		final boolean bottomEdge = (edgeFlags & Keyboard.EDGE_BOTTOM) > 0;
+		return (x >= mLeft[index] || (leftEdge && x <= mRight[index]))
+				&& (x < mRight[index] || (rightEdge && x >= mLeft[index]))
+				&& (y >= mTop[index] || (topEdge && y <= mBottom[index]))
+				&& (y < mBottom[index] || (bottomEdge && y >= mTop[index]));
+	}
+
+	/**
+	 * Returns the index of the key at a touch point, or {@link #NOT_A_KEY}.
+	 */
+	public int getKeyIndex(int x, int y) {
+		y += mVerticalCorrection;
+		if (x < 0 || x >= mWidth || y < 0 || y >= mHeight) {
+			return NOT_A_KEY;
+		}
+		return mCells[mRowOf[y] * mColumns + mColumnOf[x]];
+	}
+
+	/**
+	 * Returns how far a touch point is past the edge of a key on the side of a side
+	 * letter, negative if it is not past that edge.
+	 * @param index key index
+	 * @param codeIndex side letter, 1 to 4 for left, top, right and bottom
+	 */
+	public int getOvershoot(int index, int codeIndex, int x, int y) {
+		y += mVerticalCorrection;
+		switch (codeIndex) {
+			case 1: return mLeft[index] - x;
+			case 2: return mTop[index] - y;
+			case 3: return x - mRight[index] + 1;
+			case 4: return y - mBottom[index] + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the size of a key in the direction of a side letter, the width for left
+	 * and right and the height for top and bottom.
+	 */
+	public int getSideSize(int index, int codeIndex) {
+		return codeIndex == 1 || codeIndex == 3 ?
+				mRight[index] - mLeft[index] : mBottom[index] - mTop[index];
+	}
+
+	/**
+	 * Returns which letter (code index) of a pressed key a touch point selects: 0 inside
+	 * the key, 1 to 4 for the left, top, right and bottom side letters when outside the
+	 * key, -1 for none.
+	 */
+	public int getCodeIndex(int index, int x, int y) {
+		y += mVerticalCorrection;
+		if (isInside(index, x, y)) {
+			return 0;
+		} else if (mSides[index]) {
+			if (y < mTop[index]) {
+				return 2;
+			} else if (y >= mBottom[index]) {
+				return 4;
+			} else if (x < mLeft[index]) {
+				return 1;
+			} else if (x >= mRight[index]) {
+				return 3;
+			}
+		}
+		return -1;
+	}
+}
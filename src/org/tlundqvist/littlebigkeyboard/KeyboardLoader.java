@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.content.Context;
+import android.os.Process;
+
+/**
+ * Builds the keyboard layouts when they are first needed instead of all of them at
+ * startup. The layout the current editor asks for is built right away on the main
+ * thread, the others can be built ahead on a low priority background thread.
+ *
+ * Each layout has its own lock. If the main thread needs a layout the background
+ * thread is building, it waits for that one instead of parsing it a second time,
+ * and the background thread is raised to the priority of the waiting thread until
+ * that layout is done.
+ * Layouts parsed from XML are written in compiled form by the background thread,
+ * see {@link CompiledLayout}, so the main thread never waits for that.
+ * A generation counter makes sure layouts built for an old display width are never
+ * handed out after {@link #reset()}.
+ */
+public class KeyboardLoader {
+
+	public static final int ALPHA           = 0;
+	public static final int ALPHA_SHIFTED   = 1;
+	public static final int NUMERAL         = 2;
+	public static final int NUMERAL_SHIFTED = 3;
+	public static final int LAYOUT_COUNT    = 4;
+
+	private static final int[] LAYOUT_RES_IDS = {
+		R.xml.alpha, R.xml.alpha_shifted, R.xml.numeral, R.xml.numeral_shifted
+	};
+
+	private final Context mContext;
+	/** Built keyboards, each guarded by its lock in mLocks */
+	private final LatinKeyboard[] mKeyboards = new LatinKeyboard[LAYOUT_COUNT];
+	/** Whether a built keyboard was parsed from XML and not yet written compiled */
+	private final boolean[] mNeedsCompile = new boolean[LAYOUT_COUNT];
+	private final Object[] mLocks = new Object[LAYOUT_COUNT];
+	private volatile int mGeneration;
+	private Thread mThread;
+	/** Thread id of the background thread, 0 before it runs */
+	private volatile int mThreadTid;
+	/** Layout the background thread is building and layout a caller waits for, or -1 */
+	private volatile int mBuilding = -1;
+	private volatile int mWaiting = -1;
+
+	public KeyboardLoader(Context context) {
+		mContext = context;
+		for (int i = 0; i < LAYOUT_COUNT; i++) {
+			mLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Returns a keyboard layout, building it first if needed.
+	 * @param layout one of {@link #ALPHA}, {@link #ALPHA_SHIFTED}, {@link #NUMERAL}
+	 * or {@link #NUMERAL_SHIFTED}
+	 */
+	public LatinKeyboard get(int layout) {
+		// Either this sees the background thread building the layout, or the
+		// background thread sees this waiting for it
+		mWaiting = layout;
+		if (mBuilding == layout) {
+			raiseBackgroundPriority(Process.getThreadPriority(Process.myTid()));
+		}
+		try {
+			synchronized (mLocks[layout]) {
+				if (mKeyboards[layout] == null) {
+					build(layout);
+				}
+				return mKeyboards[layout];
+			}
+		} finally {
+			mWaiting = -1;
+		}
+	}
+
+	private void raiseBackgroundPriority(int priority) {
+		final int tid = mThreadTid;
+		if (tid != 0 && priority < Process.THREAD_PRIORITY_BACKGROUND) {
+			try {
+				Process.setThreadPriority(tid, priority);
+			} catch (IllegalArgumentException e) {
+				// The thread has ended
+			} catch (SecurityException e) {
+				// Not allowed, it will finish at its own pace
+			}
+		}
+	}
+
+	/** Builds a layout, called with its lock held */
+	private void build(int layout) {
+		final LatinKeyboard keyboard = CompiledLayout.load(mContext, LAYOUT_RES_IDS[layout]);
+		keyboard.setLayout(layout);
+		mKeyboards[layout] = keyboard;
+		mNeedsCompile[layout] = keyboard.getRows() != null;
+	}
+
+	/**
+	 * Returns which layout a keyboard is, or -1 if it is none of them. Takes no
+	 * locks, the layout is kept on the keyboard.
+	 */
+	public int layoutOf(LatinKeyboard keyboard) {
+		return keyboard != null ? keyboard.getLayout() : -1;
+	}
+
+	/**
+	 * Starts building the layouts not built yet on a background thread, then writes
+	 * the compiled form of those parsed from XML.
+	 */
+	public void loadInBackground() {
+		if (mThread != null && mThread.isAlive()) {
+			return;
+		}
+		final int generation = mGeneration;
+		mThread = new Thread("KeyboardLoader") {
+			@Override
+			public void run() {
+				mThreadTid = Process.myTid();
+				for (int i = 0; i < LAYOUT_COUNT; i++) {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					mBuilding = i;
+					if (mWaiting == i) {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+					}
+					try {
+						synchronized (mLocks[i]) {
+							if (mGeneration != generation) {
+								return;
+							}
+							if (mKeyboards[i] == null) {
+								build(i);
+							}
+						}
+					} finally {
+						mBuilding = -1;
+					}
+				}
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				for (int i = 0; i < LAYOUT_COUNT; i++) {
+					final LatinKeyboard keyboard;
+					synchronized (mLocks[i]) {
+						if (mGeneration != generation) {
+							return;
+						}
+						if (!mNeedsCompile[i]) {
+							continue;
+						}
+						mNeedsCompile[i] = false;
+						keyboard = mKeyboards[i];
+					}
+					// Outside the lock, the keyboard is not changed by writing it
+					CompiledLayout.compile(mContext, keyboard, LAYOUT_RES_IDS[i]);
+				}
+			}
+		};
+		mThread.start();
+	}
+
+	/**
+	 * Forgets all built layouts, for instance when the display width changed. A
+	 * background build in progress stops without handing out its result.
+	 */
+	public void reset() {
+		mGeneration++;
+		for (int i = 0; i < LAYOUT_COUNT; i++) {
+			synchronized (mLocks[i]) {
+				mKeyboards[i] = null;
+				mNeedsCompile[i] = false;
+			}
+		}
+		// Let a new background build start even if the old one is still finishing
+		mThread = null;
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import java.io.PrintWriter;
+
+/**
+ * Measures keystroke latency: the time from a touch event reaching the keyboard
+ * view until the key code is resolved, until the text is committed to the editor
+ * and until the key has been repainted. Results are kept as histograms per key
+ * type and printed by "adb shell dumpsys input_method".
+ *
+ * Recording is a System.nanoTime() call and a few array writes, without
+ * allocations or locks. All recording happens on the main thread. The dump runs
+ * on a binder thread and may see a histogram in the middle of an update, which
+ * is fine for statistics. The last events are also kept in a ring buffer so that
+ * single slow keystrokes can be looked at.
+ */
+public class LatencyTracer {
+
+	/** Touch event to key code resolved */
+	public static final int STAGE_RESOLVE = 0;
+	/** Touch event to text committed to the editor */
+	public static final int STAGE_COMMIT  = 1;
+	/** Touch event to the key repaint drawn */
+	public static final int STAGE_DRAW    = 2;
+	public static final int STAGE_COUNT   = 3;
+
+	public static final int TYPE_LETTER   = 0;
+	public static final int TYPE_SYMBOL   = 1;
+	public static final int TYPE_SPACE    = 2;
+	public static final int TYPE_DELETE   = 3;
+	public static final int TYPE_FUNCTION = 4;
+	public static final int TYPE_COUNT    = 5;
+
+	private static final String[] STAGE_NAMES = { "resolve", "commit", "draw" };
+	private static final String[] TYPE_NAMES = {
+		"letter", "symbol", "space/enter", "delete", "function"
+	};
+
+	/** Histogram buckets, 4 per power of two microseconds, up to half a minute */
+	private static final int BUCKETS = 100;
+	private static final int RING_SIZE = 256;
+	/** Maximum number of resolved keys waiting for their commit */
+	private static final int MAX_PENDING = 16;
+
+	/** Counts indexed by (type * STAGE_COUNT + stage) * BUCKETS + bucket */
+	private final int[] mHistograms = new int[TYPE_COUNT * STAGE_COUNT * BUCKETS];
+
+	/** Last events, latency in microseconds and stage | type << 8 */
+	private final int[] mRingLatency = new int[RING_SIZE];
+	private final int[] mRingInfo = new int[RING_SIZE];
+	private volatile int mRingCount;
+
+	/** Time the touch event or key repeat being handled reached the view */
+	private long mTouchTime;
+	/** Resolved keys not yet committed, touch times and types */
+	private final long[] mPendingTime = new long[MAX_PENDING];
+	private final int[] mPendingType = new int[MAX_PENDING];
+	private int mPendingCount;
+	/** Oldest touch whose repaint has not been drawn yet, 0 if none */
+	private long mDrawTime;
+	private int mDrawType;
+
+	/**
+	 * Called when a touch event reaches the keyboard view or a key repeat fires.
+	 */
+	public void onTouch() {
+		mTouchTime = System.nanoTime();
+	}
+
+	/**
+	 * Called when the touch event being handled resolved to a key code.
+	 */
+	public void onResolved(int code) {
+		final int type = typeOf(code);
+		record(STAGE_RESOLVE, type, mTouchTime, System.nanoTime());
+		if (mPendingCount < MAX_PENDING) {
+			mPendingTime[mPendingCount] = mTouchTime;
+			mPendingType[mPendingCount] = type;
+			mPendingCount++;
+		}
+	}
+
+	/**
+	 * Called when all resolved keys have been handled and their text, if any, is
+	 * committed to the editor.
+	 */
+	public void onCommitted() {
+		if (mPendingCount == 0) {
+			return;
+		}
+		final long now = System.nanoTime();
+		for (int i = 0; i < mPendingCount; i++) {
+			record(STAGE_COMMIT, mPendingType[i], mPendingTime[i], now);
+		}
+		mPendingCount = 0;
+	}
+
+	/**
+	 * Called when the touch event being handled made a key need a repaint.
+	 * @param code primary code of the key
+	 */
+	public void onRepaintNeeded(int code) {
+		if (mDrawTime == 0 && mTouchTime != 0) {
+			mDrawTime = mTouchTime;
+			mDrawType = typeOf(code);
+		}
+	}
+
+	/**
+	 * Called when the keyboard view has finished drawing.
+	 */
+	public void onDrawn() {
+		if (mDrawTime != 0) {
+			record(STAGE_DRAW, mDrawType, mDrawTime, System.nanoTime());
+			mDrawTime = 0;
+		}
+	}
+
+	private void record(int stage, int type, long start, long end) {
+		final long micros = (end - start) / 1000;
+		mHistograms[(type * STAGE_COUNT + stage) * BUCKETS + bucketOf(micros)]++;
+		final int slot = mRingCount % RING_SIZE;
+		mRingLatency[slot] = (int) Math.min(micros, Integer.MAX_VALUE);
+		mRingInfo[slot] = stage | type << 8;
+		mRingCount++;
+	}
+
+	private static int typeOf(int code) {
+		if (code == LatinKeyboard.KEYCODE_DELETE) {
+			return TYPE_DELETE;
+		} else if (code == ' ' || code == '\n') {
+			return TYPE_SPACE;
+		} else if (code < 0) {
+			return TYPE_FUNCTION;
+		} else if (Character.isLetter(code)) {
+			return TYPE_LETTER;
+		}
+		return TYPE_SYMBOL;
+	}
+
+	/**
+	 * Bucket of a latency, below 4 us one bucket per microsecond, above that four
+	 * buckets per power of two.
+	 */
+	private static int bucketOf(long micros) {
+		if (micros < 4) {
+			return (int) Math.max(0, micros);
+		}
+		final int log = 63 - Long.numberOfLeadingZeros(micros);
+		final int sub = (int) (micros >>> (log - 2)) & 3;
+		return Math.min(log * 4 + sub - 4, BUCKETS - 1);
+	}
+
+	/** Largest latency in microseconds that falls in a bucket */
+	private static long bucketLimit(int bucket) {
+		if (bucket < 4) {
+			return bucket;
+		}
+		final int log = (bucket + 4) / 4;
+		final int sub = (bucket + 4) % 4;
+		return ((5L + sub) << (log - 2)) - 1;
+	}
+
+	/**
+	 * Forgets all recorded latencies.
+	 */
+	public void reset() {
+		for (int i = 0; i < mHistograms.length; i++) {
+			mHistograms[i] = 0;
+		}
+		mRingCount = 0;
+	}
+
+	/**
+	 * Prints percentiles per key type and stage, and the last recorded events.
+	 */
+	public void dump(PrintWriter pw, String prefix) {
+		pw.println(prefix + "Keystroke latency in ms (p50 p99 p999 max, count):");
+		for (int type = 0; type < TYPE_COUNT; type++) {
+			for (int stage = 0; stage < STAGE_COUNT; stage++) {
+				final int offset = (type * STAGE_COUNT + stage) * BUCKETS;
+				int count = 0;
+				int max = 0;
+				for (int b = 0; b < BUCKETS; b++) {
+					count += mHistograms[offset + b];
+					if (mHistograms[offset + b] > 0) {
+						max = b;
+					}
+				}
+				if (count == 0) {
+					continue;
+				}
+				pw.println(prefix + "  " + TYPE_NAMES[type] + " " + STAGE_NAMES[stage] + ": "
+						+ millis(percentile(offset, count, 0.5)) + " "
+						+ millis(percentile(offset, count, 0.99)) + " "
+						+ millis(percentile(offset, count, 0.999)) + " "
+						+ millis(bucketLimit(max)) + ", " + count);
+			}
+		}
+
+		final int total = mRingCount;
+		final int n = Math.min(total, RING_SIZE);
+		pw.println(prefix + "Last " + n + " events (stage type us):");
+		StringBuilder line = new StringBuilder();
+		for (int i = total - n; i < total; i++) {
+			final int slot = i % RING_SIZE;
+			final int info = mRingInfo[slot];
+			line.append(' ').append(STAGE_NAMES[info & 0xff].charAt(0))
+					.append(info >> 8).append(':').append(mRingLatency[slot]);
+			if (line.length() > 72 || i == total - 1) {
+				pw.println(prefix + " " + line);
+				line.setLength(0);
+			}
+		}
+	}
+
+	private long percentile(int offset, int count, double p) {
+		final long target = (long) Math.ceil(count * p);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += mHistograms[offset + b];
+			if (seen >= target) {
+				return bucketLimit(b);
+			}
+		}
+		return bucketLimit(BUCKETS - 1);
+	}
+
+	private static String millis(long micros) {
+		return (micros / 1000) + "." + (micros / 100 % 10) + (micros / 10 % 10);
+	}
+}
@@ -22,12 +22,17 @@ import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
 import android.inputmethodservice.Keyboard;
 
-public class LatinKeyboard extends Keyboard {
+import java.util.ArrayList;
+import java.util.List;
+
+public class LatinKeyboard extends Keyboard implements Cloneable {
 
 	public static final int KEYCODE_LEFT    = -70;
 	public static final int KEYCODE_RIGHT   = -71;
 	public static final int KEYCODE_END     = -72;
 	public static final int KEYCODE_HOME    = -73;
+	public static final int KEYCODE_UNDO    = -74;
+	public static final int KEYCODE_REDO    = -75;
 	public static final int KEYCODE_NOTUSED = -99;
     public static final int KEYCODE_OPTIONS = -100;
     public static final int KEYCODE_DEAD_ACUTE      = -120;
@@ -36,10 +41,66 @@ public class LatinKeyboard extends Keyboard {
     public static final int KEYCODE_DEAD_CIRCUMFLEX = -123;
     public static final int KEYCODE_DEAD_TILDE      = -124;
     
+    static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+    
+    /** Empty keyboard copied for compiled layouts, and the display width it is for */
+    private static LatinKeyboard sEmpty;
+    private static int sEmptyDisplayWidth;
+    
+    // No field initializers, fields set while the super constructor parses the
+    // XML would be overwritten by them
     private LatinKey mNumKey;
+    private LatinKey mShiftKey;
+    private KeyGrid mKeyGrid;
+    private LatinKey[] mKeyArray;
+    /** KeyboardLoader layout index plus one, 0 if not built by the loader */
+    private int mLayout;
+    /** Rows in XML order, only while parsing and for CompiledLayout */
+    private ArrayList<Row> mRows;
+    /** Keys of a keyboard loaded from a CompiledLayout, null for XML keyboards */
+    private ArrayList<Key> mCompiledKeys;
+    /** Size of a keyboard loaded from a CompiledLayout, 0 for XML keyboards */
+    private int mCompiledWidth;
+    private int mCompiledHeight;
+    /** Display width and key height dimension an XML keyboard was parsed for */
+    private int mParsedDisplayWidth;
+    private int mParsedKeyHeight;
     
     public LatinKeyboard(Context context, int xmlLayoutResId) {
         super(context, xmlLayoutResId);
+        final Resources res = context.getResources();
+        mParsedDisplayWidth = res.getDisplayMetrics().widthPixels;
+        mParsedKeyHeight = res.getDimensionPixelSize(R.dimen.key_height);
+    }
+    
+    /**
+     * Returns a new empty keyboard of the given size, for {@link CompiledLayout}.
+     * Keys are added with {@link #addKey}. Keyboard has no constructor that does
+     * not parse XML, so an empty layout is parsed once per display width and
+     * copied after that.
+     */
+    static LatinKeyboard createEmpty(Context context, int width, int height) {
+    	final int displayWidth = context.getResources().getDisplayMetrics().widthPixels;
+    	final LatinKeyboard empty;
+    	synchronized (LatinKeyboard.class) {
+    		if (sEmpty == null || sEmptyDisplayWidth != displayWidth) {
+    			sEmpty = new LatinKeyboard(context, R.xml.popup);
+    			sEmptyDisplayWidth = displayWidth;
+    		}
+    		empty = sEmpty;
+    	}
+    	final LatinKeyboard keyboard;
+    	try {
+    		keyboard = (LatinKeyboard) empty.clone();
+    	} catch (CloneNotSupportedException e) {
+    		throw new AssertionError(e);
+    	}
+    	// The copy shares the key lists of Keyboard with the original, it keeps its
+    	// keys in a list of its own
+    	keyboard.mCompiledKeys = new ArrayList<Key>();
+    	keyboard.mCompiledWidth = width;
+    	keyboard.mCompiledHeight = height;
+    	return keyboard;
     }
 
     public LatinKeyboard(Context context, int layoutTemplateResId, 
@@ -51,10 +112,77 @@ public class LatinKeyboard extends Keyboard {
     protected Key createKeyFromXml(Resources res, Row parent, int x, int y, 
             XmlResourceParser parser) {
         LatinKey key = new LatinKey(res, parent, x, y, parser);
+        key.row = mRows.size() - 1;
+        remember(key);
+        return key;
+    }
+    
+    @Override
+    protected Row createRowFromXml(Resources res, XmlResourceParser parser) {
+        Row row = super.createRowFromXml(res, parser);
+        if (mRows == null) {
+            mRows = new ArrayList<Row>();
+        }
+        mRows.add(row);
+        return row;
+    }
+    
+    private void remember(LatinKey key) {
         if (key.codes[0] == Keyboard.KEYCODE_MODE_CHANGE) {
         	mNumKey = key;
+        } else if (key.codes[0] == Keyboard.KEYCODE_SHIFT) {
+        	mShiftKey = key;
         }
-        return key;
+    }
+    
+    /**
+     * Adds a key to a keyboard created for {@link CompiledLayout}.
+     */
+    void addKey(LatinKey key) {
+    	mCompiledKeys.add(key);
+    	remember(key);
+    }
+    
+    @Override
+    public List<Key> getKeys() {
+    	return mCompiledKeys != null ? mCompiledKeys : super.getKeys();
+    }
+    
+    /**
+     * Returns the rows the keyboard was parsed from, null if it was not parsed
+     * from XML.
+     */
+    ArrayList<Row> getRows() {
+    	return mRows;
+    }
+    
+    /** Display width the keyboard was parsed for, see {@link #getRows} */
+    int getParsedDisplayWidth() {
+    	return mParsedDisplayWidth;
+    }
+    
+    /** Key height dimension the keyboard was parsed for */
+    int getParsedKeyHeight() {
+    	return mParsedKeyHeight;
+    }
+    
+    @Override
+    public int getMinWidth() {
+    	return mCompiledWidth > 0 ? mCompiledWidth : super.getMinWidth();
+    }
+    
+    @Override
+    public int getHeight() {
+    	return mCompiledHeight > 0 ? mCompiledHeight : super.getHeight();
+    }
+    
+    @Override
+    public boolean setShifted(boolean shiftState) {
+    	// Keyboard only knows its shift key if it parsed it itself
+    	if (mShiftKey != null) {
+    		mShiftKey.on = shiftState;
+    	}
+    	return super.setShifted(shiftState);
     }
     
     public void setNumMode(boolean nummode) {
@@ -63,10 +191,54 @@ public class LatinKeyboard extends Keyboard {
     	}
     }
     
+    /**
+     * Returns which {@link KeyboardLoader} layout this keyboard is, -1 if none.
+     */
+    public int getLayout() {
+    	return mLayout - 1;
+    }
+    
+    void setLayout(int layout) {
+    	mLayout = layout + 1;
+    }
+    
+    /**
+     * Returns the keys as an array, built on first use. No keys may be added after
+     * this is called.
+     */
+    public LatinKey[] getKeyArray() {
+    	if (mKeyArray == null) {
+    		final List<Key> keys = getKeys();
+    		mKeyArray = keys.toArray(new LatinKey[keys.size()]);
+    	}
+    	return mKeyArray;
+    }
+    
+    /**
+     * Returns the touch lookup grid of this keyboard, building it on first use.
+     * @param verticalCorrection offset added to touch y coordinates
+     */
+    public KeyGrid getKeyGrid(int verticalCorrection) {
+    	if (mKeyGrid == null) {
+    		mKeyGrid = new KeyGrid(this, verticalCorrection);
+    	}
+    	return mKeyGrid;
+    }
+    
     public class LatinKey extends Keyboard.Key {
         
+        /** Row index in the XML layout */
+        int row;
+        /** Resource id of the icon, 0 if none */
+        int iconResId;
+        
         public LatinKey(Resources res, Keyboard.Row parent, int x, int y, XmlResourceParser parser) {
             super(res, parent, x, y, parser);
+            iconResId = parser.getAttributeResourceValue(ANDROID_NS, "keyIcon", 0);
+        }
+        
+        LatinKey(Keyboard.Row parent) {
+            super(parent);
         }
 
         public void setPressed(boolean p) {
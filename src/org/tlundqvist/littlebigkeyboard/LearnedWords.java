@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Words the user has typed and how often, used as one more {@link WordDictionary}
+ * for suggestions.
+ *
+ * New words go to an append-only log, a batch at a time. Each batch ends with a
+ * CRC, so after a crash a torn last batch is recognised and cut off. Once the log
+ * has grown enough it is compacted: merged with the snapshot into a new snapshot
+ * in the dictionary format, which is then memory mapped like the other
+ * dictionaries. Starting up only maps the snapshot and reads the short log tail.
+ *
+ * {@link #add} is called on the main thread and only queues the word. Everything
+ * else runs on the {@link SuggestionWorker} thread.
+ *
+ * Log batch format, big endian:
+ * <pre>
+ * int   BATCH_MAGIC
+ * short number of words
+ * per word: byte length, then the chars
+ * int   CRC32 of the bytes above
+ * </pre>
+ */
+public class LearnedWords {
+
+	private static final String TAG = "LearnedWords";
+
+	private static final String SNAPSHOT = "learned.bin";
+	private static final String LOG = "learned.log";
+
+	private static final int BATCH_MAGIC = 0x4c424257; // "LBBW"
+	/** Words in the log before it is compacted into the snapshot */
+	private static final int COMPACT_WORDS = 200;
+	/** Words shorter than this are not worth suggesting */
+	private static final int MIN_LENGTH = 3;
+
+	private final Context mContext;
+	/** Files directory, looked up on the worker thread as it may touch the disk */
+	private File mDir;
+
+	/** Words added on the main thread and not yet written, guarded by itself */
+	private final ArrayList<String> mQueue = new ArrayList<String>();
+
+	/** Worker thread state: the mapped snapshot and the counts in the log */
+	private WordDictionary mSnapshot;
+	private final HashMap<String, Integer> mTail = new HashMap<String, Integer>();
+	private int mTailWords;
+
+	public LearnedWords(Context context) {
+		mContext = context;
+	}
+
+	/**
+	 * Queues a word the user has typed. Called on the main thread, does no I/O.
+	 * @return whether the queue was empty before, then the caller should arrange for
+	 * {@link #writeQueued} to be called
+	 */
+	public boolean add(CharSequence word) {
+		if (word.length() < MIN_LENGTH || word.length() > WordSuggester.MAX_WORD) {
+			return false;
+		}
+		synchronized (mQueue) {
+			mQueue.add(word.toString().toLowerCase());
+			return mQueue.size() == 1;
+		}
+	}
+
+	/**
+	 * Maps the snapshot and reads the log written after it. A torn batch at the end
+	 * of the log is cut off.
+	 * @return the snapshot, or null if there is none yet
+	 */
+	public WordDictionary open() {
+		mDir = mContext.getFilesDir();
+		mSnapshot = WordDictionary.open(new File(mDir, SNAPSHOT));
+		mTail.clear();
+		mTailWords = 0;
+		final File log = new File(mDir, LOG);
+		if (log.exists()) {
+			try {
+				readLog(log);
+			} catch (IOException e) {
+				Log.w(TAG, "Could not read " + log, e);
+			}
+		}
+		return mSnapshot;
+	}
+
+	private void readLog(File log) throws IOException {
+		final byte[] data = new byte[(int) log.length()];
+		FileInputStream in = new FileInputStream(log);
+		try {
+			int n = 0;
+			while (n < data.length) {
+				int r = in.read(data, n, data.length - n);
+				if (r < 0)
+					throw new IOException("Unexpected end of file");
+				n += r;
+			}
+		} finally {
+			in.close();
+		}
+
+		final ByteBuffer buf = ByteBuffer.wrap(data);
+		final CRC32 crc = new CRC32();
+		final char[] word = new char[WordSuggester.MAX_WORD];
+		int good = 0;
+		try {
+			while (buf.remaining() > 0) {
+				final int start = buf.position();
+				if (buf.getInt() != BATCH_MAGIC) {
+					break;
+				}
+				final int count = buf.getShort();
+				for (int i = 0; i < count; i++) {
+					final int length = buf.get();
+					// Only the chars are needed for the CRC check further down
+					for (int c = 0; c < length; c++) {
+						buf.getChar();
+					}
+				}
+				final int end = buf.position();
+				crc.reset();
+				crc.update(data, start, end - start);
+				if (buf.getInt() != (int) crc.getValue()) {
+					break;
+				}
+				// Intact, count its words
+				buf.position(start + 6);
+				for (int i = 0; i < count; i++) {
+					final int length = buf.get();
+					for (int c = 0; c < length; c++) {
+						word[c] = buf.getChar();
+					}
+					count(new String(word, 0, length));
+				}
+				buf.position(end + 4);
+				good = buf.position();
+			}
+		} catch (RuntimeException e) {
+			// Torn or broken batch, everything before it is fine
+		}
+		if (good < data.length) {
+			Log.w(TAG, "Cutting " + (data.length - good) + " bytes off " + log);
+			RandomAccessFile file = new RandomAccessFile(log, "rw");
+			try {
+				file.setLength(good);
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	private void count(String word) {
+		final Integer old = mTail.get(word);
+		mTail.put(word, Integer.valueOf(old != null ? old.intValue() + 1 : 1));
+		mTailWords++;
+	}
+
+	/**
+	 * Appends the queued words to the log as one batch and syncs it to disk.
+	 */
+	public void writeQueued() {
+		String[] words;
+		synchronized (mQueue) {
+			if (mQueue.isEmpty()) {
+				return;
+			}
+			words = mQueue.toArray(new String[mQueue.size()]);
+			mQueue.clear();
+		}
+		final File log = new File(mDir, LOG);
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream batch = new DataOutputStream(bytes);
+			batch.writeInt(BATCH_MAGIC);
+			batch.writeShort(words.length);
+			for (int i = 0; i < words.length; i++) {
+				batch.writeByte(words[i].length());
+				batch.writeChars(words[i]);
+			}
+			batch.close();
+			final byte[] data = bytes.toByteArray();
+			final CRC32 crc = new CRC32();
+			crc.update(data);
+
+			FileOutputStream out = new FileOutputStream(log, true);
+			try {
+				out.write(data);
+				out.write(new byte[] {
+					(byte) (crc.getValue() >>> 24), (byte) (crc.getValue() >>> 16),
+					(byte) (crc.getValue() >>> 8), (byte) crc.getValue()
+				});
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			for (int i = 0; i < words.length; i++) {
+				count(words[i]);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write " + log, e);
+		}
+	}
+
+	/** Whether the log has grown enough to be compacted */
+	public boolean needsCompaction() {
+		return mTailWords >= COMPACT_WORDS;
+	}
+
+	/**
+	 * Merges the log into a new snapshot and starts a new log. A crash after the new
+	 * snapshot is in place but before the log is removed counts those words twice,
+	 * which is harmless for frequencies.
+	 * @return the new snapshot, or the old one if compaction failed
+	 */
+	public WordDictionary compact() {
+		final DictionaryWriter writer = new DictionaryWriter();
+		final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		if (mSnapshot != null) {
+			try {
+				collect(mSnapshot, mSnapshot.getRoot(), new char[WordSuggester.MAX_WORD], 0,
+						counts);
+			} catch (IndexOutOfBoundsException e) {
+				Log.w(TAG, "Broken snapshot, starting over", e);
+			}
+		}
+		for (Map.Entry<String, Integer> e : mTail.entrySet()) {
+			final Integer old = counts.get(e.getKey());
+			counts.put(e.getKey(), Integer.valueOf(e.getValue().intValue()
+					+ (old != null ? old.intValue() : 0)));
+		}
+		for (Map.Entry<String, Integer> e : counts.entrySet()) {
+			// Frequencies are counts, saturating at the top
+			writer.add(e.getKey(), Math.min(255, e.getValue().intValue()));
+		}
+
+		final File file = new File(mDir, SNAPSHOT);
+		final File tmp = new File(mDir, SNAPSHOT + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				writer.write(out);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not rename " + tmp);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write " + file, e);
+			tmp.delete();
+			return mSnapshot;
+		}
+		new File(mDir, LOG).delete();
+		mTail.clear();
+		mTailWords = 0;
+		// The old mapping stays valid for lookups still using it
+		mSnapshot = WordDictionary.open(file);
+		return mSnapshot;
+	}
+
+	private static void collect(WordDictionary dictionary, int node, char[] word, int length,
+			HashMap<String, Integer> counts) {
+		final int n = dictionary.getChildCount(node);
+		for (int i = 0; i < n; i++) {
+			final int entry = dictionary.getEntry(node, i);
+			word[length] = dictionary.getChar(entry);
+			final int frequency = dictionary.getWordFrequency(entry);
+			if (frequency > 0) {
+				counts.put(new String(word, 0, length + 1), Integer.valueOf(frequency));
+			}
+			final int child = dictionary.getChildNode(entry);
+			if (child != 0 && length + 1 < word.length) {
+				collect(dictionary, child, word, length + 1, counts);
+			}
+		}
+	}
+}
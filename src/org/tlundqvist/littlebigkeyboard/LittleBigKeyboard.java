@@ -19,7 +19,7 @@ package org.tlundqvist.littlebigkeyboard;
 
 import android.inputmethodservice.InputMethodService;
 import android.inputmethodservice.Keyboard;
-import android.view.KeyEvent;
+import android.preference.PreferenceManager;
 import android.view.View;
 import android.view.inputmethod.CompletionInfo;
 import android.view.inputmethod.EditorInfo;
@@ -28,36 +28,88 @@ import android.view.inputmethod.ExtractedTextRequest;
 import android.view.inputmethod.InputConnection;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
+import org.tlundqvist.littlebigkeyboard.KeyActionTable.KeyAction;
 import org.tlundqvist.littlebigkeyboard.R;
 
 /**
  * Input method for a soft keyboard.  Based on the android sample code: softkeyboard.
  */
 public class LittleBigKeyboard extends InputMethodService
-        implements ModKeyboardView.OnKeyboardActionListener {
+        implements ModKeyboardView.OnKeyboardActionListener, OutputBatcher.Listener,
+        SuggestionWorker.Listener {
 	
     static final boolean DEBUG = false;
 //    static final boolean DEBUG = true;
     
+    /**
+     * Shortest time in milliseconds between batch edits sent to the editor, one
+     * frame. A keystroke after a pause is sent right away, everything typed within
+     * a frame of the last batch goes in the next one.
+     */
+    private static final int OUTPUT_FLUSH_DELAY = 16;
+    
+    /**
+     * A held delete key deletes characters, after this many repeats words, and
+     * after this many sentences, a word or sentence every few repeats.
+     */
+    private static final int DELETE_WORDS_AFTER = 20;
+    private static final int DELETE_SENTENCES_AFTER = 50;
+    private static final int DELETE_WORD_REPEATS = 3;
+    private static final int DELETE_SENTENCE_REPEATS = 8;
+    /** Presses and repeats of the delete key since it was pressed */
+    private int mDeleteCount;
+    
+    /** What the special keys do */
+    private final KeyActionTable mKeyActions = new KeyActionTable();
+    
     private ModKeyboardView mInputView;
     private CandidateView mCandidateView;
-    private CompletionInfo[] mCompletions;
+    private CandidateList mCompletions = CandidateList.EMPTY;
+    
+    /** Languages of the dictionaries used for word suggestions */
+    private static final String[] DICTIONARY_LANGUAGES = { "en", "sv" };
+    /** Word suggestion lookups, its thread starts when suggestions are first used */
+    private SuggestionWorker mSuggester;
+    /** Whether words are suggested in this editor, see {@link Settings#PREF_SUGGEST_WORDS} */
+    private boolean mPredictionOn;
+    private CandidateList mPredictions = CandidateList.EMPTY;
     
-    // Composing is only used for dead key accent combinations (maximum length 1)
-    private char mDeadKeyComposing;
+    /** Abbreviations from the settings, read again when the file changes */
+    private Abbreviations mAbbreviations;
+    /** Whether abbreviations are expanded in this editor */
+    private boolean mAbbreviationsOn;
+    /** Trie nodes after each character typed since the last separator, -1 past a dead end */
+    private final int[] mAbbreviationPath = new int[Abbreviations.MAX_LENGTH + 1];
+    /**
+     * Characters typed since the last separator, -1 if not known. Then the text before
+     * the cursor is checked for a word start when the next word character is typed.
+     */
+    private int mAbbreviationLength = -1;
+    /** Whether the typed abbreviation starts with a capital */
+    private boolean mAbbreviationCapital;
+    /** Statistics */
+    private int mExpansions;
+    
+    // Composing is only used for dead key accents and compose sequences, the
+    // composing text is one character showing the state
+    private int mComposeState;
+    /** Whether Enter inserts a line break in this editor, not an editor action */
+    private boolean mEnterInserts;
     private boolean mCompletionOn;
     private boolean mCapsLock;
     private long mLastShiftTime;
     
-    private LatinKeyboard mAlphaKeyboard;
-    private LatinKeyboard mAlphaShiftedKeyboard;
-    private LatinKeyboard mNumeralKeyboard;
-    private LatinKeyboard mNumeralShiftedKeyboard;
+    private KeyboardLoader mKeyboards;
+    /** Layout to show in the current editor, see {@link KeyboardLoader} */
+    private int mCurLayout = KeyboardLoader.ALPHA;
     
-    private LatinKeyboard mCurKeyboard;
+    private OutputBatcher mOutput;
+    private TextContext mTextContext;
+    private final LatencyTracer mTracer = new LatencyTracer();
     
     private static final String TAG = "LittleBigKeyboard";
     
@@ -67,6 +119,11 @@ public class LittleBigKeyboard extends InputMethodService
      */
     @Override public void onCreate() {
         super.onCreate();
+        mKeyboards = new KeyboardLoader(this);
+        mTextContext = new TextContext();
+        mOutput = new OutputBatcher(this, this, mTextContext, OUTPUT_FLUSH_DELAY);
+        mSuggester = new SuggestionWorker(this, this, DICTIONARY_LANGUAGES);
+        setKeyActions();
         // Use the following line to debug IME service.
         if (DEBUG) {
         	android.os.Debug.waitForDebugger();
@@ -74,6 +131,12 @@ public class LittleBigKeyboard extends InputMethodService
         }
     }
     
+    @Override public void onDestroy() {
+        mOutput.discard();
+        mSuggester.quit();
+        super.onDestroy();
+    }
+    
     /**
      * This is the point where you can do all of your UI initialization.  It
      * is called after creation and any configuration change.
@@ -82,18 +145,14 @@ public class LittleBigKeyboard extends InputMethodService
     
     @Override public void onInitializeInterface() {
         int displayWidth = getMaxWidth();
-        if (mAlphaKeyboard != null) {
-            // Configuration changes can happen after the keyboard gets recreated,
-            // so we avoid re-building the keyboards if the available
-            // space hasn't changed.
-            if (displayWidth == mLastDisplayWidth) return;
-        }
+        // Configuration changes can happen after the keyboard gets recreated,
+        // so we avoid re-building the keyboards if the available
+        // space hasn't changed.
+        if (displayWidth == mLastDisplayWidth) return;
         mLastDisplayWidth = displayWidth;
         
-        mAlphaKeyboard          = new LatinKeyboard(this, R.xml.alpha);
-        mAlphaShiftedKeyboard   = new LatinKeyboard(this, R.xml.alpha_shifted);
-        mNumeralKeyboard        = new LatinKeyboard(this, R.xml.numeral);
-        mNumeralShiftedKeyboard = new LatinKeyboard(this, R.xml.numeral_shifted);
+        // Keyboards are built when first shown, see onStartInputView()
+        mKeyboards.reset();
     }
     
     /**
@@ -109,9 +168,21 @@ public class LittleBigKeyboard extends InputMethodService
         mInputView = (ModKeyboardView) getLayoutInflater().inflate(
                 R.layout.input, null);
         mInputView.setOnKeyboardActionListener(this);
+        mInputView.setLatencyTracer(mTracer);
         return mInputView;
     }
 
+    /**
+     * Called by the system when memory is running low. Drop the rendered images
+     * of keyboards not currently shown, they are cheap to render again.
+     */
+    @Override public void onLowMemory() {
+        super.onLowMemory();
+        if (mInputView != null) {
+            mInputView.trimMemory();
+        }
+    }
+
     /**
      * Called by the framework when your view for showing candidates needs to
      * be generated, like {@link #onCreateInputView}.
@@ -136,10 +207,22 @@ public class LittleBigKeyboard extends InputMethodService
         
         // Reset our state.  We want to do this even if restarting, because
         // the underlying state of the text editor could have changed in any way.
-        mDeadKeyComposing = 0;
+        mOutput.discard();
+        mTextContext.reset();
+        mComposeState = ComposeTable.NONE;
         
+        mEnterInserts = (attribute.inputType & (EditorInfo.TYPE_MASK_CLASS
+                | EditorInfo.TYPE_TEXT_FLAG_MULTI_LINE))
+                == (EditorInfo.TYPE_CLASS_TEXT | EditorInfo.TYPE_TEXT_FLAG_MULTI_LINE)
+                && ((attribute.imeOptions & EditorInfo.IME_FLAG_NO_ENTER_ACTION) != 0
+                || (attribute.imeOptions & EditorInfo.IME_MASK_ACTION) == EditorInfo.IME_ACTION_NONE);
         mCompletionOn = false;
-        mCompletions = null;
+        mCompletions = CandidateList.EMPTY;
+        mPredictionOn = false;
+        mPredictions = CandidateList.EMPTY;
+        mAbbreviationsOn = false;
+        // The cursor may be in the middle of a word
+        mAbbreviationLength = -1;
         
         // We are now going to initialize our state based on the type of
         // text being edited.
@@ -148,13 +231,13 @@ public class LittleBigKeyboard extends InputMethodService
             case EditorInfo.TYPE_CLASS_DATETIME:
                 // Numbers and dates default to the symbols keyboard, with
                 // no extra features.
-                mCurKeyboard = mNumeralKeyboard;
+                mCurLayout = KeyboardLoader.NUMERAL;
                 break;
                 
             case EditorInfo.TYPE_CLASS_PHONE:
                 // Phones will also default to the symbols keyboard, though
                 // often you will want to have a dedicated phone keyboard.
-                mCurKeyboard = mNumeralKeyboard;
+                mCurLayout = KeyboardLoader.NUMERAL;
                 break;
                 
             case EditorInfo.TYPE_CLASS_TEXT:
@@ -162,7 +245,7 @@ public class LittleBigKeyboard extends InputMethodService
                 // normal alphabetic keyboard, and assume that we should
                 // be doing predictive text (showing candidates as the
                 // user types).
-                mCurKeyboard = mAlphaKeyboard;
+                mCurLayout = KeyboardLoader.ALPHA;
                 
                 if ((attribute.inputType&EditorInfo.TYPE_TEXT_FLAG_AUTO_COMPLETE) != 0) {
                     // If this is an auto-complete text view, then our predictions
@@ -172,13 +255,48 @@ public class LittleBigKeyboard extends InputMethodService
                     // on it displaying its own UI.
                     mCompletionOn = isFullscreenMode();
                 }
+                
+                final int variation = attribute.inputType & EditorInfo.TYPE_MASK_VARIATION;
+                final boolean words = variation != EditorInfo.TYPE_TEXT_VARIATION_PASSWORD
+                        && variation != EditorInfo.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD
+                        && variation != EditorInfo.TYPE_TEXT_VARIATION_EMAIL_ADDRESS
+                        && variation != EditorInfo.TYPE_TEXT_VARIATION_URI
+                        && variation != EditorInfo.TYPE_TEXT_VARIATION_FILTER;
+                if (words) {
+                    mAbbreviationsOn = loadAbbreviations();
+                }
+                if (!mCompletionOn && words
+                        && (attribute.inputType & EditorInfo.TYPE_TEXT_FLAG_NO_SUGGESTIONS) == 0) {
+                    // Off unless turned on in the settings, the keyboard is non-predictive
+                    mPredictionOn = PreferenceManager.getDefaultSharedPreferences(this)
+                            .getBoolean(Settings.PREF_SUGGEST_WORDS, false);
+                }
                 break;
                 
             default:
                 // For all unknown input types, default to the alphabetic
                 // keyboard with no special features.
-                mCurKeyboard = mAlphaKeyboard;
+                mCurLayout = KeyboardLoader.ALPHA;
+        }
+        
+        if (mPredictionOn) {
+            mSuggester.start();
+        } else {
+            mSuggester.reset();
+        }
+    }
+    
+    /**
+     * Reads the abbreviations compiled by {@link Settings}, unless already read.
+     * @return whether there are any
+     */
+    private boolean loadAbbreviations() {
+        final File file = new File(getFilesDir(), Abbreviations.FILE_NAME);
+        final long modified = file.lastModified();
+        if (mAbbreviations != null ? modified != mAbbreviations.getModified() : modified != 0) {
+            mAbbreviations = Abbreviations.load(file);
         }
+        return mAbbreviations != null;
     }
 
     /**
@@ -186,10 +304,13 @@ public class LittleBigKeyboard extends InputMethodService
      * this to reset our state.
      */
     @Override public void onFinishInput() {
+        // Send anything still queued while the editor is connected
+        mOutput.flush();
+        mSuggester.flush();
         super.onFinishInput();
         
         // Clear current composing text
-        mDeadKeyComposing = 0;
+        mComposeState = ComposeTable.NONE;
         
         // We only hide the candidates window when finishing input on
         // a particular editor, to avoid popping the underlying application
@@ -197,13 +318,15 @@ public class LittleBigKeyboard extends InputMethodService
         // its window.
         setCandidatesViewShown(false);
         
-        mCurKeyboard = mAlphaKeyboard;
+        mCurLayout = KeyboardLoader.ALPHA;
     }
     
     @Override public void onStartInputView(EditorInfo attribute, boolean restarting) {
         super.onStartInputView(attribute, restarting);
         // Apply the selected keyboard to the input view.
-        mInputView.setKeyboard(mCurKeyboard);
+        // Only the layout for this editor is built now, the others in the background
+        mInputView.setKeyboard(mKeyboards.get(mCurLayout));
+        mKeyboards.loadInBackground();
         updateShiftKeyState();
     }
     
@@ -216,6 +339,11 @@ public class LittleBigKeyboard extends InputMethodService
             int candidatesStart, int candidatesEnd) {
         super.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd,
                 candidatesStart, candidatesEnd);
+        if (!mTextContext.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd)) {
+            // Moved away from the word being typed
+            endWord();
+            mAbbreviationLength = -1;
+        }
         
         if (DEBUG) {
 	        Log.d(TAG, "onUpdateSelection(" + newSelStart + "," + newSelEnd + ")");
@@ -233,9 +361,9 @@ public class LittleBigKeyboard extends InputMethodService
         
         // If the current selection in the text view changes, we should
         // clear whatever candidate text we have.
-        if (mDeadKeyComposing != 0 && (newSelStart != candidatesEnd
+        if (mComposeState != ComposeTable.NONE && (newSelStart != candidatesEnd
                 || newSelEnd != candidatesEnd)) {
-            mDeadKeyComposing = 0;
+            mComposeState = ComposeTable.NONE;
             InputConnection ic = getCurrentInputConnection();
             if (ic != null) {
                 ic.finishComposingText();
@@ -251,45 +379,87 @@ public class LittleBigKeyboard extends InputMethodService
      */
     @Override public void onDisplayCompletions(CompletionInfo[] completions) {
         if (mCompletionOn) {
-            mCompletions = completions;
-            if (completions == null) {
-                setSuggestions(null, false, false);
+            final CandidateList previous = mCompletions;
+            mCompletions = CandidateList.update(previous, completions);
+            if (mCompletions == previous && mCompletions.size() > 0) {
+                // Same list again, nothing to show
                 return;
             }
-            
-            List<String> stringList = new ArrayList<String>();
-            for (int i=0; i<(completions != null ? completions.length : 0); i++) {
-                CompletionInfo ci = completions[i];
-                if (ci != null) stringList.add(ci.getText().toString());
+            if (mCompletions.size() == 0) {
+                setSuggestions(null, false, false);
+                return;
             }
-            setSuggestions(stringList, true, true);
+            setSuggestions(mCompletions, true, true);
         }
     }
     
     /**
-     * Helper function to commit any text being composed in to the editor.
+     * Helper function to end composing, replacing the composing text.
+     * @param c character to commit, 0 for none
      */
-    private void commitTyped(InputConnection inputConnection) {
-        if (mDeadKeyComposing != 0) {
-            inputConnection.commitText(Character.toString(mDeadKeyComposing), 1);
-            mDeadKeyComposing = 0;
+    private void commitTyped(InputConnection inputConnection, char c) {
+        if (mComposeState != ComposeTable.NONE) {
+            final CharSequence text = c != 0 ? OutputBatcher.charString(c) : "";
+            inputConnection.commitText(text, 1);
+            mComposeState = ComposeTable.NONE;
+            mTextContext.onCommitted(text);
+            mTextContext.onEditDone();
         }
     }
 
+    /**
+     * Same as {@link #sendKeyChar} but queues ordinary characters in the output
+     * batcher, which commits them without creating a new string for each.
+     */
+    private void sendCharacter(int code) {
+        if (mAbbreviationsOn) {
+            expandAbbreviation(code);
+        }
+        updateWord(code);
+        if (code == '\n' || (code >= '0' && code <= '9')) {
+            // Enter might be an editor action and digits go through key events
+            mOutput.flush();
+            sendKeyChar((char) code);
+            if (code != '\n' || mEnterInserts) {
+                mTextContext.onCommitted(OutputBatcher.charString((char) code));
+                mTextContext.onEditDone();
+            } else {
+                // Might have been taken by the editor instead of inserted
+                mTextContext.invalidate();
+            }
+            updateShiftKeyState();
+        } else {
+            // Shift state is updated when the batch has been sent
+            mOutput.queueCharacter(code);
+        }
+    }
+    
+    /**
+     * Called when characters queued in the output batcher have been committed.
+     */
+    public void onOutputFlushed() {
+        mTracer.onCommitted();
+        updateShiftKeyState();
+    }
+    
     /**
      * Helper to update the shift state of our keyboard based on the initial
      * editor state.
      */
     private void updateShiftKeyState() {
+    	// Caps mode depends on the text, so it must be up to date in the editor
+    	mOutput.flush();
     	EditorInfo attr = getCurrentInputEditorInfo();
         if (attr != null 
         		&& mInputView != null) {
             int caps = 0;
-        	if (mAlphaKeyboard == mInputView.getKeyboard() ||
-        			mAlphaShiftedKeyboard == mInputView.getKeyboard()) {
+        	int layout = mKeyboards.layoutOf(mInputView.getKeyboard());
+        	if (layout == KeyboardLoader.ALPHA || layout == KeyboardLoader.ALPHA_SHIFTED) {
 	            EditorInfo ei = getCurrentInputEditorInfo();
-	            if (ei != null && ei.inputType != EditorInfo.TYPE_NULL) {
-	                caps = getCurrentInputConnection().getCursorCapsMode(attr.inputType);
+	            InputConnection ic = getCurrentInputConnection();
+	            if (ei != null && ei.inputType != EditorInfo.TYPE_NULL && ic != null) {
+	                // Usually answered from the text we sent, without asking the editor
+	                caps = mTextContext.getCursorCapsMode(ic, attr.inputType);
 	            }
         	}
             setShifted(mCapsLock || caps != 0);
@@ -297,84 +467,239 @@ public class LittleBigKeyboard extends InputMethodService
     }
     
     private void setShifted(boolean shifted) {
-        Keyboard currentKeyboard = mInputView.getKeyboard();
+        int currentLayout = mKeyboards.layoutOf(mInputView.getKeyboard());
     	if (shifted) {
-    		if (currentKeyboard == mAlphaKeyboard)
-    			mInputView.setKeyboard(mAlphaShiftedKeyboard);
-    		else if (currentKeyboard == mNumeralKeyboard)
-    			mInputView.setKeyboard(mNumeralShiftedKeyboard);
+    		if (currentLayout == KeyboardLoader.ALPHA)
+    			mInputView.setKeyboard(mKeyboards.get(KeyboardLoader.ALPHA_SHIFTED));
+    		else if (currentLayout == KeyboardLoader.NUMERAL)
+    			mInputView.setKeyboard(mKeyboards.get(KeyboardLoader.NUMERAL_SHIFTED));
     	} else {
-    		if (currentKeyboard == mAlphaShiftedKeyboard)
-    			mInputView.setKeyboard(mAlphaKeyboard);
-    		else if (currentKeyboard == mNumeralShiftedKeyboard)
-    			mInputView.setKeyboard(mNumeralKeyboard);
+    		if (currentLayout == KeyboardLoader.ALPHA_SHIFTED)
+    			mInputView.setKeyboard(mKeyboards.get(KeyboardLoader.ALPHA));
+    		else if (currentLayout == KeyboardLoader.NUMERAL_SHIFTED)
+    			mInputView.setKeyboard(mKeyboards.get(KeyboardLoader.NUMERAL));
     	}
         mInputView.setShifted(mCapsLock, shifted);
-        boolean nummode = currentKeyboard == mNumeralKeyboard ||
-    		currentKeyboard == mNumeralShiftedKeyboard;
+        boolean nummode = currentLayout == KeyboardLoader.NUMERAL ||
+    		currentLayout == KeyboardLoader.NUMERAL_SHIFTED;
         mInputView.setNumMode(nummode);
     }
     
+    /**
+     * Sets what a special key does, replacing any earlier action.
+     * @param code negative key code, down to {@link KeyActionTable#MIN_KEYCODE}
+     * @param action null for nothing
+     */
+    public void setKeyAction(int code, KeyAction action) {
+        mKeyActions.set(code, action);
+    }
+    
+    private void setKeyActions() {
+        setKeyAction(Keyboard.KEYCODE_DELETE, new KeyAction() {
+            public void perform(int count) {
+                handleBackspace(count);
+            }
+        });
+        setKeyAction(Keyboard.KEYCODE_SHIFT, new KeyAction() {
+            public void perform(int count) {
+                handleShift();
+            }
+        });
+        setKeyAction(Keyboard.KEYCODE_CANCEL, new KeyAction() {
+            public void perform(int count) {
+                handleClose();
+            }
+        });
+        setKeyAction(Keyboard.KEYCODE_MODE_CHANGE, new KeyAction() {
+            public void perform(int count) {
+                handleModeChange();
+            }
+        });
+        // KEYCODE_OPTIONS: show a menu or somethin'
+        setKeyAction(LatinKeyboard.KEYCODE_LEFT, new KeyAction() {
+            public void perform(int count) {
+                endWord();
+                mOutput.queueCursorMove(-count);
+            }
+        });
+        setKeyAction(LatinKeyboard.KEYCODE_RIGHT, new KeyAction() {
+            public void perform(int count) {
+                endWord();
+                mOutput.queueCursorMove(count);
+            }
+        });
+        setKeyAction(LatinKeyboard.KEYCODE_END, new KeyAction() {
+            public void perform(int count) {
+                endWord();
+                mOutput.flush();
+                final InputConnection ic = getCurrentInputConnection();
+                if (ic == null) return;
+                if (!mTextContext.getNavigator().moveToLineEnd(ic)) {
+                    // Editor without extracted text, or a very long line
+                    mOutput.queueCursorMove(5);
+                    return;
+                }
+                mTextContext.onCursorMoved();
+            }
+        });
+        setKeyAction(LatinKeyboard.KEYCODE_HOME, new KeyAction() {
+            public void perform(int count) {
+                endWord();
+                mOutput.flush();
+                final InputConnection ic = getCurrentInputConnection();
+                if (ic == null) return;
+                if (!mTextContext.getNavigator().moveToLineStart(ic)) {
+                    // As above, the start of the document will have to do
+                    ic.setSelection(0, 0);
+                    mTextContext.invalidate();
+                    return;
+                }
+                mTextContext.onCursorMoved();
+            }
+        });
+        setKeyAction(LatinKeyboard.KEYCODE_UNDO, new KeyAction() {
+            public void perform(int count) {
+                endWord();
+                mAbbreviationLength = -1;
+                mTextContext.getUndoRing().undo(count, mOutput);
+            }
+        });
+        setKeyAction(LatinKeyboard.KEYCODE_REDO, new KeyAction() {
+            public void perform(int count) {
+                endWord();
+                mAbbreviationLength = -1;
+                mTextContext.getUndoRing().redo(count, mOutput);
+            }
+        });
+        setDeadKeyAction(LatinKeyboard.KEYCODE_DEAD_ACUTE, '\u00b4');
+        setDeadKeyAction(LatinKeyboard.KEYCODE_DEAD_GRAVE, '`');
+        setDeadKeyAction(LatinKeyboard.KEYCODE_DEAD_DIARESIS, '\u00a8');
+        setDeadKeyAction(LatinKeyboard.KEYCODE_DEAD_CIRCUMFLEX, '^');
+        setDeadKeyAction(LatinKeyboard.KEYCODE_DEAD_TILDE, '~');
+    }
+    
+    private void setDeadKeyAction(int code, final char accent) {
+        setKeyAction(code, new KeyAction() {
+            public void perform(int count) {
+                handleDeadKey(accent);
+            }
+        });
+    }
+    
     // Implementation of KeyboardViewListener
     
     public void onKey(int primaryCode) {
     	if (mInputView == null) return;
     	
-    	if (primaryCode == Keyboard.KEYCODE_DELETE) {
-            handleBackspace();
-        } else if (primaryCode == Keyboard.KEYCODE_SHIFT) {
-            handleShift();
-        } else if (primaryCode == Keyboard.KEYCODE_CANCEL) {
-            handleClose();
-        } else if (primaryCode == LatinKeyboard.KEYCODE_OPTIONS) {
-            // Show a menu or somethin'
-        } else if (primaryCode == Keyboard.KEYCODE_MODE_CHANGE) {
-        	handleModeChange();
-        } else if (primaryCode == LatinKeyboard.KEYCODE_LEFT) {
-        	sendDownUpKeyEvents(KeyEvent.KEYCODE_DPAD_LEFT);
-        } else if (primaryCode == LatinKeyboard.KEYCODE_RIGHT) {
-        	sendDownUpKeyEvents(KeyEvent.KEYCODE_DPAD_RIGHT);
-        } else if (primaryCode == LatinKeyboard.KEYCODE_END) {
-        	for (int i = 0 ; i < 5 ; i++) {
-            	sendDownUpKeyEvents(KeyEvent.KEYCODE_DPAD_RIGHT);
-        	}
-        } else if (primaryCode == LatinKeyboard.KEYCODE_HOME) {
-    		getCurrentInputConnection().setSelection(0,0);
-        } else if (primaryCode == LatinKeyboard.KEYCODE_DEAD_ACUTE) {
-        	handleDeadKey('\u00b4');
-        } else if (primaryCode == LatinKeyboard.KEYCODE_DEAD_GRAVE) {
-        	handleDeadKey('`');
-        } else if (primaryCode == LatinKeyboard.KEYCODE_DEAD_DIARESIS) {
-        	handleDeadKey('\u00a8');
-        } else if (primaryCode == LatinKeyboard.KEYCODE_DEAD_CIRCUMFLEX) {
-        	handleDeadKey('^');
-        } else if (primaryCode == LatinKeyboard.KEYCODE_DEAD_TILDE) {
-        	handleDeadKey('~');
+    	// A new press, repeats count from here
+    	mDeleteCount = 0;
+    	if (primaryCode >= 0) {
+    		// Normal character or separator, by far the most common
+            if (mComposeState == ComposeTable.NONE || !handleCompose(primaryCode)) {
+            	sendCharacter(primaryCode);
+            }
+    	} else {
+    		mKeyActions.perform(primaryCode, 1);
+    	}
+        if (mOutput.isEmpty()) {
+        	// Handled right away, otherwise when the queued text is sent
+        	mTracer.onCommitted();
+        }
+    }
+
+    public void onRepeat(int primaryCode, int count) {
+    	if (mInputView == null) return;
+    	
+    	if (primaryCode >= 0) {
+    		// Characters end up in one commit through the output batcher
+    		for (int i = 0; i < count; i++) {
+    			onKey(primaryCode);
+    		}
+    		return;
+    	}
+    	mKeyActions.perform(primaryCode, count);
+        if (mOutput.isEmpty()) {
+        	mTracer.onCommitted();
+        }
+    }
+
+    /**
+     * Follows the abbreviation being typed and replaces it with its expansion when a
+     * separator ends it. The expansion is queued before the separator, so both go
+     * in the same batch edit and are undone together.
+     */
+    private void expandAbbreviation(int code) {
+        if (Abbreviations.isAbbreviationChar(code)) {
+            stepAbbreviation(code);
+            return;
+        }
+        final int length = mAbbreviationLength;
+        mAbbreviationLength = 0;
+        if (length <= 0 || mAbbreviationPath[length] < 0) {
+            return;
+        }
+        final String expansion = mAbbreviations.getExpansion(mAbbreviationPath[length]);
+        if (expansion == null) {
+            return;
+        }
+        mExpansions++;
+        endWord();
+        mOutput.queueDelete(length);
+        for (int i = 0; i < expansion.length(); i++) {
+            final char c = expansion.charAt(i);
+            mOutput.queueCharacter(i == 0 && mAbbreviationCapital ? Character.toUpperCase(c) : c);
+        }
+    }
+    
+    /**
+     * Follows a character that does not end an abbreviation, composed characters
+     * included.
+     */
+    private void stepAbbreviation(int code) {
+        int length = mAbbreviationLength;
+        if (!Abbreviations.isAbbreviationChar(code)) {
+            // A word start next, but no expansion for composed separators
+            mAbbreviationLength = 0;
+            return;
+        }
+        if (length < 0) {
+            // Only a separator already sent before the cursor makes this a word
+            // start, the editor text must not have queued or composing text after it
+            if (!mOutput.isEmpty() || mComposeState != ComposeTable.NONE
+                    || !mTextContext.isAtWordStart(getCurrentInputConnection())) {
+                return;
+            }
+            length = 0;
+        }
+        if (length == Abbreviations.MAX_LENGTH) {
+            mAbbreviationLength = -1;
         } else {
-        	// normal character or separator
-            if (mDeadKeyComposing != 0) {
-            	// Compose with previous accent
-            	int r = (char) KeyEvent.getDeadChar(mDeadKeyComposing, primaryCode);
-            	if (r != 0)
-            		mDeadKeyComposing = (char) r;
-                commitTyped(getCurrentInputConnection());
-            } else {
-            	sendKeyChar((char)primaryCode);
+            if (length == 0) {
+                mAbbreviationPath[0] = mAbbreviations.getRoot();
+                mAbbreviationCapital = Character.isUpperCase(code);
             }
-        	updateShiftKeyState();
+            final int node = mAbbreviationPath[length];
+            mAbbreviationPath[length + 1] = node >= 0 ? mAbbreviations.step(node, (char) code) : -1;
+            mAbbreviationLength = length + 1;
         }
     }
 
     public void onText(CharSequence text) {
         InputConnection ic = getCurrentInputConnection();
         if (ic == null) return;
+        endWord();
+        mAbbreviationLength = -1;
+        mOutput.flush();
         ic.beginBatchEdit();
-        ic.commitText(text, 0);
+        // Cursor after the text, where the next edit and an undo expect it
+        ic.commitText(text, 1);
         ic.endBatchEdit();
+        mTextContext.onCommitted(text);
+        mTextContext.onEditDone();
         updateShiftKeyState();
     }
 
-    public void setSuggestions(List<String> suggestions, boolean completions,
+    public void setSuggestions(CandidateList suggestions, boolean completions,
             boolean typedWordValid) {
         if (suggestions != null && suggestions.size() > 0) {
             setCandidatesViewShown(true);
@@ -386,16 +711,92 @@ public class LittleBigKeyboard extends InputMethodService
         }
     }
     
-    private void handleBackspace() {
-        if (mDeadKeyComposing != 0) {
-            mDeadKeyComposing = 0;
+    /**
+     * Deletes before the cursor.
+     * @param count presses of the delete key, more than one for coalesced repeats
+     */
+    private void handleBackspace(int count) {
+        final int before = mDeleteCount;
+        mDeleteCount += count;
+        if (mComposeState != ComposeTable.NONE) {
+            mOutput.flush();
+            mComposeState = ComposeTable.NONE;
             getCurrentInputConnection().setComposingText("", 0);
+            mTextContext.onComposing("");
+            count--;
+        }
+        if (count > 0 && mDeleteCount > DELETE_WORDS_AFTER) {
+            // Held for a while, whole words or sentences at a slower pace
+            final boolean sentences = mDeleteCount > DELETE_SENTENCES_AFTER;
+            final int every = sentences ? DELETE_SENTENCE_REPEATS : DELETE_WORD_REPEATS;
+            final int units = mDeleteCount / every - before / every;
+            if (units == 0) {
+                return;
+            }
+            mOutput.flush();
+            final InputConnection ic = getCurrentInputConnection();
+            final int length = sentences ? mTextContext.getSentenceDeleteLength(ic, units)
+                    : mTextContext.getWordDeleteLength(ic, units);
+            if (length >= 0) {
+                count = length;
+            }
+            // Otherwise the text is not known, characters then
+        }
+        if (count > 0) {
+        	mAbbreviationLength = mAbbreviationLength >= count ? mAbbreviationLength - count : -1;
+        	if (!mPredictionOn || mSuggester.getWordLength() == 0
+        			|| !mSuggester.onDeleted(count)) {
+        		endWord();
+        	}
+        	// Shift state is updated when the deletes have been sent. Repeats need no
+        	// key events, the first press has deleted any selection.
+        	mOutput.queueDelete(count, before == 0);
         } else {
-        	sendDownUpKeyEvents(KeyEvent.KEYCODE_DEL);
+        	updateShiftKeyState();
         }
-        updateShiftKeyState();
     }
 
+    /**
+     * Follows the word being typed and shows its completions, if word suggestions
+     * are on.
+     */
+    private void updateWord(int code) {
+        if (!mPredictionOn) return;
+        if (!mSuggester.onCharacter(code)) {
+            clearPredictions();
+        }
+        // Otherwise the suggestions shown stay until the new ones arrive
+    }
+    
+    /**
+     * Stops suggesting for the word typed so far, when the cursor leaves it.
+     */
+    private void endWord() {
+        if (!mPredictionOn) return;
+        mSuggester.reset();
+        clearPredictions();
+    }
+    
+    /**
+     * Called with suggestions for the word being typed.
+     */
+    public void onSuggestions(CandidateList suggestions) {
+        if (!mPredictionOn) return;
+        if (suggestions.size() == 0) {
+            clearPredictions();
+            return;
+        }
+        mPredictions = suggestions;
+        setSuggestions(mPredictions, false, true);
+    }
+    
+    private void clearPredictions() {
+        if (mPredictions.size() > 0) {
+            mPredictions = CandidateList.EMPTY;
+            setSuggestions(null, false, false);
+        }
+    }
+    
     private void handleShift() {
         checkToggleCapsLock();
         boolean shifted = mCapsLock || !mInputView.isShifted();
@@ -403,20 +804,21 @@ public class LittleBigKeyboard extends InputMethodService
     }
     
     private void handleModeChange() {
-	    LatinKeyboard current = mInputView.getKeyboard();
-	    if (current == mNumeralKeyboard || current == mNumeralShiftedKeyboard) {
-	        current = mAlphaKeyboard;
+	    int current = mKeyboards.layoutOf(mInputView.getKeyboard());
+	    if (current == KeyboardLoader.NUMERAL || current == KeyboardLoader.NUMERAL_SHIFTED) {
+	        current = KeyboardLoader.ALPHA;
 	    } else {
-	        current = mNumeralKeyboard;
+	        current = KeyboardLoader.NUMERAL;
 	    }
-	    mInputView.setKeyboard(current);
+	    mInputView.setKeyboard(mKeyboards.get(current));
 	    mCapsLock = false;
 	    setShifted(false);
 	    updateShiftKeyState();
     }
     
     private void handleClose() {
-        commitTyped(getCurrentInputConnection());
+        mOutput.flush();
+        commitTyped(getCurrentInputConnection(), ComposeTable.getUncomposedChar(mComposeState));
         requestHideSelf(0);
     }
 
@@ -432,20 +834,83 @@ public class LittleBigKeyboard extends InputMethodService
     }
     
     private void handleDeadKey(char accent) {
-        mDeadKeyComposing = accent;
-        getCurrentInputConnection().setComposingText(Character.toString(mDeadKeyComposing), 1);
+        if (mComposeState != ComposeTable.NONE && handleCompose(accent)) {
+            return;
+        }
+        mOutput.flush();
+        mComposeState = ComposeTable.getAccentState(accent);
+        final CharSequence pending =
+                OutputBatcher.charString(ComposeTable.getPendingChar(mComposeState));
+        getCurrentInputConnection().setComposingText(pending, 1);
+        mTextContext.onComposing(pending);
     	updateShiftKeyState();
     }
+
+    /**
+     * Takes the next character while composing.
+     * @return whether the character was used, if not composing has ended and the
+     * character should be handled as usual
+     */
+    private boolean handleCompose(int code) {
+        final InputConnection ic = getCurrentInputConnection();
+        final int result = ComposeTable.compose(mComposeState, code);
+        if (ComposeTable.isState(result)) {
+            mComposeState = result;
+            final CharSequence pending =
+                    OutputBatcher.charString(ComposeTable.getPendingChar(result));
+            ic.setComposingText(pending, 1);
+            mTextContext.onComposing(pending);
+            return true;
+        }
+        if (result != 0) {
+            if (mAbbreviationsOn) {
+                stepAbbreviation(result);
+            }
+            updateWord(result);
+            commitTyped(ic, (char) result);
+            updateShiftKeyState();
+            return true;
+        }
+        // No such sequence, an accent is kept as it is
+        final char uncomposed = ComposeTable.getUncomposedChar(mComposeState);
+        if (uncomposed != 0) {
+            if (mAbbreviationsOn) {
+                stepAbbreviation(uncomposed);
+            }
+            updateWord(uncomposed);
+        }
+        commitTyped(ic, uncomposed);
+        return false;
+    }
     
 //    public void pickDefaultCandidate() {
 //        pickSuggestionManually(0);
 //    }
     
     public void pickSuggestionManually(int index) {
-        if (mCompletionOn && mCompletions != null && index >= 0
-                && index < mCompletions.length) {
-            CompletionInfo ci = mCompletions[index];
-            getCurrentInputConnection().commitCompletion(ci);
+        if (mPredictionOn && index >= 0 && index < mPredictions.size()) {
+            // Replace the whole typed word, the list may be for an older version
+            // of it. Queued characters are cancelled rather than deleted.
+            final CharSequence word = mPredictions.getText(index);
+            mOutput.queueDelete(mSuggester.getWordLength());
+            for (int i = 0; i < word.length(); i++) {
+                mOutput.queueCharacter(word.charAt(i));
+            }
+            mOutput.queueCharacter(' ');
+            mSuggester.learn(word);
+            endWord();
+            // After the space queued above
+            mAbbreviationLength = 0;
+            return;
+        }
+        if (mCompletionOn && index >= 0 && index < mCompletions.size()) {
+            CompletionInfo ci = mCompletions.getCompletion(index);
+            mOutput.flush();
+            // Recorded for undo, a bad completion is the thing most worth undoing
+            mTextContext.commitCompletion(getCurrentInputConnection(), ci);
+            mAbbreviationLength = -1;
+            // Show the editor's next list even if it is the same as this one
+            mCompletions = CandidateList.EMPTY;
             if (mCandidateView != null) {
                 mCandidateView.clear();
             }
@@ -456,6 +921,44 @@ public class LittleBigKeyboard extends InputMethodService
     public void onPress(int primaryCode) {
     }
     
+    /**
+     * Prints statistics, shown by "adb shell dumpsys input_method".
+     */
+    @Override protected void dump(FileDescriptor fd, PrintWriter fout, String[] args) {
+        super.dump(fd, fout, args);
+        if (args != null && args.length > 0 && "reset-latency".equals(args[args.length - 1])) {
+            mTracer.reset();
+        }
+        final int queries = mTextContext.getCapsQueryCount();
+        final int calls = mTextContext.getEditorCallCount();
+        fout.println("LittleBigKeyboard:");
+        fout.println("  caps mode queries=" + queries + " editor calls=" + calls
+                + " avoided=" + (queries - calls));
+        fout.println("  cursor jumps=" + mTextContext.getNavigator().getMoveCount()
+                + " text reads=" + mTextContext.getNavigator().getReadCount());
+        fout.println("  edits undone=" + mTextContext.getUndoRing().getUndoneCount()
+                + " undoable=" + mTextContext.getUndoRing().getUndoCount());
+        fout.println("  abbreviations expanded=" + mExpansions);
+        fout.println("  output queued=" + mOutput.getQueuedCount()
+                + " batch edits=" + mOutput.getBatchCount());
+        fout.println("  suggestion lookups=" + mSuggester.getLookupCount()
+                + " stale=" + mSuggester.getStaleCount()
+                + " past deadline=" + mSuggester.getLateCount());
+        if (mInputView != null) {
+            final int frames = Math.max(1, mInputView.getFrameCount());
+            fout.println("  frames=" + mInputView.getFrameCount()
+                    + " pixels blitted/frame=" + mInputView.getPixelsBlitted() / frames
+                    + " pixels rendered/frame=" + mInputView.getPixelsRendered() / frames);
+            if (ModKeyboardView.DEBUG_ALLOCATIONS) {
+                fout.println("  events checked for allocations="
+                        + mInputView.getCheckedEventCount()
+                        + " allocating=" + mInputView.getAllocatingEventCount());
+            }
+            mInputView.dumpTouchReplay(fout, "  ");
+        }
+        mTracer.dump(fout, "  ");
+    }
+    
     public void onRelease(int primaryCode) {
     }
 }
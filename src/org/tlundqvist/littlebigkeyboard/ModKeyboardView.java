@@ -20,22 +20,22 @@ package org.tlundqvist.littlebigkeyboard;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
-import android.graphics.Typeface;
-import android.graphics.Paint.Align;
 import android.graphics.Region.Op;
 import android.graphics.drawable.Drawable;
 import android.inputmethodservice.Keyboard;
 import android.inputmethodservice.Keyboard.Key;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
-import java.util.List;
+import java.io.PrintWriter;
 
 import org.tlundqvist.littlebigkeyboard.LatinKeyboard.LatinKey;
 
@@ -73,6 +73,14 @@ public class ModKeyboardView extends View implements View.OnClickListener {
          * @param primaryCode this is the key that was pressed
          */
         void onKey(int primaryCode);
+        
+        /**
+         * Send repeats of a held key to the listener.
+         * @param primaryCode this is the key that repeats
+         * @param count number of repeats due, more than one if they could not be
+         * delivered in time
+         */
+        void onRepeat(int primaryCode, int count);
 
         /**
          * Sends a sequence of characters to the listener.
@@ -83,47 +91,165 @@ public class ModKeyboardView extends View implements View.OnClickListener {
 
     /** Listener for {@link OnKeyboardActionListener}. */
     private OnKeyboardActionListener mKeyboardActionListener;
+    /** Keystroke latency measurement, may be null */
+    private LatencyTracer mTracer;
+    /** Replay check of the touch handling, with {@link #DEBUG_REPLAY} */
+    private TouchReplay mReplay;
+    
+    private static final String TAG = "ModKeyboardView";
+    
+    /**
+     * Set to true to count the allocations made while handling touch events and key
+     * repeats. Once all key images are rendered, typing should not allocate at all.
+     * Events that allocate are logged and counted in the dumpsys statistics. Each
+     * keyboard is also run through the touch traces of {@link TouchReplay} when first
+     * shown, which throws if any of its events allocates.
+     */
+    static final boolean DEBUG_ALLOCATIONS = false;
+    
+    /**
+     * Set to true to replay taps, slides and flicks on every key of each keyboard
+     * when it is first shown and check the codes sent, see {@link TouchReplay}.
+     */
+    static final boolean DEBUG_REPLAY = false;
     
     private static final int NOT_A_KEY = -1;
-    private static final int VERTICAL_CORRECTION = -10;
+    static final int VERTICAL_CORRECTION = -10;
     
     private LatinKeyboard mKeyboard;
     private LatinKey[] mKeys;
+    private KeyGrid mKeyGrid;
     private boolean mCapsLock;
     
     /** Whether the keyboard bitmap needs to be redrawn before it's blitted. **/
     private boolean mDrawPending;
-    /** The dirty region in the keyboard bitmap */
-    private Rect mDirtyRect = new Rect();
+    /**
+     * The region of the keyboard bitmap changed since it was last copied to the screen,
+     * and the region invalidated for it
+     */
+    private final Rect mDirtyRect = new Rect();
+    /** Scratch rectangles, to not allocate while drawing */
+    private final Rect mKeyRect = new Rect();
+    private final Rect mClipRect = new Rect();
+    
+    /** Drawing statistics: frames drawn, pixels copied to screen, pixels rasterized */
+    private int mFrameCount;
+    private long mPixelsBlitted;
+    private long mPixelsRendered;
     /** The keyboard bitmap for faster updates */
     private Bitmap mBuffer;
     /** Notes if the keyboard just changed, so that we could possibly reallocate the mBuffer. */
     private boolean mKeyboardChanged;
     /** The canvas for the above mutable keyboard bitmap */
     private Canvas mCanvas;
+    /** The look each key was last drawn with in mBuffer, see {@link KeyAtlas#getLook} */
+    private int[] mKeyLooks;
     
-    private Rect mPadding = new Rect(0, 0, 0, 0);
+    /** Background drawn behind the keys */
+    private Drawable mKeyboardBackground;
+    /** Pre-rendered key images of the current keyboard */
+    private KeyAtlas mAtlas;
+    
+    /** Maximum number of keyboards with a rendered buffer kept */
+    private static final int MAX_CACHED_KEYBOARDS = 4;
+    /** Maximum memory used by buffers and key atlases of keyboards not currently shown */
+    private static final int MAX_CACHED_BYTES = 1536 * 1024;
+    
+    /**
+     * Everything rendered for one keyboard. Kept for recently shown keyboards so that
+     * switching back (shift, mode change) is a bitmap swap plus redraw of the few keys
+     * that look different from when the buffer was last used.
+     */
+    private static class RenderedKeyboard {
+    	LatinKeyboard keyboard;
+    	KeyAtlas atlas;
+    	Bitmap buffer;
+    	Canvas canvas;
+    	int[] looks;
+    }
+    
+    /**
+     * Rendered keyboards, least recently shown first, mRenderedCount of them. An
+     * array so that showing a keyboard again does not allocate.
+     */
+    private final RenderedKeyboard[] mRendered = new RenderedKeyboard[MAX_CACHED_KEYBOARDS + 1];
+    private int mRenderedCount;
+    /** Rendered keyboard of mKeyboard */
+    private RenderedKeyboard mCurrentRendered;
 
+    /** Repeat of the key held by pointer id n is message MSG_REPEAT + n */
     private static final int MSG_REPEAT = 3;
-    private static final int REPEAT_INTERVAL = 60; // ~16 keys per second
-    private static final int REPEAT_START_DELAY = 400;
-    private static final int REPEAT_START_DELAY_CHARS = 800; // for non-repeating keys
-    private boolean mRepeating = false;
+    
+    /** Key classes with their own repeat timing, see {@link #setRepeatProfile} */
+    public static final int REPEAT_DELETE    = 0;
+    public static final int REPEAT_ARROW     = 1;
+    public static final int REPEAT_CHARACTER = 2; // for non-repeating keys
+    private static final int REPEAT_CLASS_COUNT = 3;
+    
+    /** Repeat timing per class in milliseconds, see {@link #setRepeatProfile} */
+    private final int[] mRepeatStartDelay  = { 400, 400, 800 };
+    private final int[] mRepeatInterval    = {  60,  60,  60 }; // ~16 keys per second
+    private final int[] mRepeatMinInterval = {  30,  20,  60 };
+    private final int[] mRepeatRamp        = {  20,  30,   0 };
+    
+    /** Most repeats delivered at once after the main thread has been busy */
+    private static final int MAX_COALESCED_REPEATS = 20;
 
     Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case MSG_REPEAT:
-                    sendCurrentCode();
-                    Message repeat = Message.obtain(this, MSG_REPEAT);
-                    sendMessageDelayed(repeat, REPEAT_INTERVAL);
-                    mRepeating = true;
-                    break;
+        	final int id = msg.what - MSG_REPEAT;
+        	if (id >= 0 && id < MAX_POINTERS && mPointerKey[id] != NOT_A_KEY) {
+            	if (DEBUG_ALLOCATIONS) startAllocationCheck();
+            	if (mTracer != null) mTracer.onTouch();
+            	// Deadlines are absolute so that time spent here does not delay the
+            	// next repeat, repeats missed while the main thread was busy are sent
+            	// together
+            	final long now = SystemClock.uptimeMillis();
+            	int due = 0;
+            	while (mRepeatDeadline[id] <= now && due < MAX_COALESCED_REPEATS) {
+            		mRepeatDeadline[id] += getRepeatInterval(id);
+            		mRepeatCount[id]++;
+            		due++;
+            	}
+            	if (mRepeatDeadline[id] <= now) {
+            		// Too far behind, drop the rest
+            		mRepeatDeadline[id] = now + getRepeatInterval(id);
+            	}
+            	if (due > 0) {
+            		sendOlder(id);
+            		sendRepeat(id, due);
+            		mPointerSent[id] = true;
+            	}
+            	if (mPointerKey[id] != NOT_A_KEY) {
+            		// Messages come from the framework pool, this does not allocate
+            		sendEmptyMessageAtTime(msg.what, mRepeatDeadline[id]);
+            	}
+                if (DEBUG_ALLOCATIONS) endAllocationCheck("repeat of key", mPointerKey[id]);
             }
         }
     };
     
+    /**
+     * Sets how a class of keys repeats when held. The interval between repeats goes
+     * linearly from the first to the fastest interval over the given number of repeats.
+     * @param repeatClass {@link #REPEAT_DELETE}, {@link #REPEAT_ARROW} or
+     * {@link #REPEAT_CHARACTER}
+     * @param startDelay milliseconds from press to the first repeat
+     * @param interval milliseconds between the first repeats
+     * @param minInterval fastest milliseconds between repeats
+     * @param rampRepeats number of repeats until the fastest interval is reached, 0 for
+     * a constant interval
+     */
+    public void setRepeatProfile(int repeatClass, int startDelay, int interval,
+    		int minInterval, int rampRepeats) {
+    	if (repeatClass < 0 || repeatClass >= REPEAT_CLASS_COUNT) return;
+    	mRepeatStartDelay[repeatClass] = Math.max(0, startDelay);
+    	mRepeatInterval[repeatClass] = Math.max(1, interval);
+    	mRepeatMinInterval[repeatClass] = Math.max(1, Math.min(interval, minInterval));
+    	mRepeatRamp[repeatClass] = Math.max(0, rampRepeats);
+    }
+    
     public ModKeyboardView(Context context, AttributeSet attrs) {
         super(context, attrs);
     }
@@ -131,6 +257,17 @@ public class ModKeyboardView extends View implements View.OnClickListener {
     public void setOnKeyboardActionListener(OnKeyboardActionListener listener) {
         mKeyboardActionListener = listener;
     }
+    
+    /**
+     * Sets where touch, key resolve and draw times are reported, null for nowhere.
+     */
+    public void setLatencyTracer(LatencyTracer tracer) {
+    	mTracer = tracer;
+    }
+    
+    LatencyTracer getLatencyTracer() {
+    	return mTracer;
+    }
 
     /**
      * Returns the {@link OnKeyboardActionListener} object.
@@ -148,26 +285,53 @@ public class ModKeyboardView extends View implements View.OnClickListener {
      * @param keyboard the keyboard to display in this view
      */
     public void setKeyboard(LatinKeyboard keyboard) {
-    	if (mDownKeyIndex != NOT_A_KEY) {
-    		// Active keypress ongoing, clean up old keyboard
-    		LatinKey key = mKeys[mDownKeyIndex];
-    		key.setPressed(false);
+    	for (int id = 0; id < MAX_POINTERS; id++) {
+    		if (mPointerKey[id] != NOT_A_KEY) {
+    			// Active keypress ongoing, clean up old keyboard
+    			mKeys[mPointerKey[id]].setPressed(false);
+    		}
     	}
         mKeyboard = keyboard;
-        List<Key> keys = mKeyboard.getKeys();
-        mKeys = keys.toArray(new LatinKey[keys.size()]);
+        mKeys = keyboard.getKeyArray();
+        mKeyGrid = keyboard.getKeyGrid(VERTICAL_CORRECTION);
+        RenderedKeyboard rendered = showRendered(keyboard);
+        if (rendered == null) {
+        	rendered = new RenderedKeyboard();
+        	rendered.keyboard = keyboard;
+        	rendered.atlas = new KeyAtlas(getResources(), keyboard);
+        	rendered.looks = new int[mKeys.length];
+        	mRendered[mRenderedCount++] = rendered;
+        }
+        // The keyboard shown before may have rendered more key images since the last
+        // trim, walks arrays only and does not allocate
+        trimRendered(MAX_CACHED_KEYBOARDS, MAX_CACHED_BYTES);
+        mCurrentRendered = rendered;
+        mAtlas = rendered.atlas;
+        // The buffer of the new keyboard is picked up at next draw
+        mBuffer = null;
+        mCanvas = null;
+        mKeyLooks = rendered.looks;
         requestLayout();
-    	if (mDownKeyIndex != NOT_A_KEY) {
-    		// Active keypress ongoing, find corresponding new key and mark it as pressed
-           	mDownKeyIndex = getKeyIndex(mDownKeyX, mDownKeyY);
-        	if (mDownKeyIndex != NOT_A_KEY) {
-        		LatinKey key = mKeys[mDownKeyIndex];
-        		key.setPressed(true);
+        if (DEBUG_REPLAY || DEBUG_ALLOCATIONS) {
+        	if (mReplay == null) {
+        		mReplay = new TouchReplay(this);
         	}
+        	mReplay.schedule(keyboard);
+        }
+    	for (int id = 0; id < MAX_POINTERS; id++) {
+    		if (mPointerKey[id] != NOT_A_KEY) {
+    			// Active keypress ongoing, find corresponding new key and mark it as pressed
+    			mPointerKey[id] = getKeyIndex(mPointerDownX[id], mPointerDownY[id]);
+    			if (mPointerKey[id] != NOT_A_KEY) {
+    				mKeys[mPointerKey[id]].setPressed(true);
+    			} else {
+    				mHandler.removeMessages(MSG_REPEAT + id);
+    			}
+    		}
     	}
-        // Hint to reallocate the buffer if the size changed
+        // Hint to swap in the buffer of the new keyboard
         mKeyboardChanged = true;
-        invalidateAllKeys();
+        invalidate();
     }
 
     /**
@@ -188,11 +352,10 @@ public class ModKeyboardView extends View implements View.OnClickListener {
     public boolean setShifted(boolean caps, boolean shifted) {
     	mCapsLock = caps;
         if (mKeyboard != null) {
-            if (mKeyboard.setShifted(shifted)) {
-                // The whole keyboard probably needs to be redrawn
-//                invalidateAllKeys();
-                return true;
-            }
+            boolean changed = mKeyboard.setShifted(shifted);
+            // Only the shift key looks different
+            invalidateChangedKeys();
+            return changed;
         }
         return false;
     }
@@ -200,6 +363,7 @@ public class ModKeyboardView extends View implements View.OnClickListener {
     public void setNumMode(boolean nummode) {
         if (mKeyboard != null) {
         	mKeyboard.setNumMode(nummode);
+        	invalidateChangedKeys();
         }
     }
     
@@ -226,11 +390,26 @@ public class ModKeyboardView extends View implements View.OnClickListener {
      * @see #invalidateKey(int)
      */
     public void invalidateAllKeys() {
-        mDirtyRect.union(0, 0, getWidth(), getHeight());
         mDrawPending = true;
         invalidate();
     }
     
+    /**
+     * Redraws the keys whose look changed since they were last drawn, for instance
+     * after a change of shift or mode state.
+     */
+    private void invalidateChangedKeys() {
+    	if (mKeys == null || mCanvas == null) {
+    		// Keyboard changed, everything is checked at next draw
+    		return;
+    	}
+    	for (int i = 0; i < mKeys.length; i++) {
+    		if (mKeyLooks[i] != mAtlas.getLook(i, getCodeIndex(i), mCapsLock)) {
+    			invalidateKey(i);
+    		}
+    	}
+    }
+    
     @Override
     public void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         // Round up a little
@@ -258,12 +437,13 @@ public class ModKeyboardView extends View implements View.OnClickListener {
             return;
         }
         final Key key = mKeys[keyIndex];
+        if (mCanvas != null && !mDrawPending)
+        	redrawKey(keyIndex);
+        if (mTracer != null)
+        	mTracer.onRepaintNeeded(key.codes[0]);
         mDirtyRect.union(key.x + getPaddingLeft(), key.y + getPaddingTop(),
                 key.x + key.width + getPaddingLeft(), key.y + key.height + getPaddingTop());
-        if (mCanvas != null)
-        	drawOneKey(mCanvas, keyIndex);
-        invalidate(key.x + getPaddingLeft(), key.y + getPaddingTop(),
-                key.x + key.width + getPaddingLeft(), key.y + key.height + getPaddingTop());
+        invalidate(mDirtyRect);
     }
     
     @Override
@@ -272,256 +452,669 @@ public class ModKeyboardView extends View implements View.OnClickListener {
         
         if (mKeyboard == null) return;
 
-        if (mDrawPending || mBuffer == null || mKeyboardChanged) {
+        if (mBuffer == null || mKeyboardChanged) {
+        	selectBuffer();
+        }
+        if (mDrawPending) {
             drawAllKeys();
+        } else {
+        	drawChangedKeys();
+        }
+        // Copy only the region the framework asks for. When just keys changed that is
+        // mDirtyRect, which invalidateKey() passed on. It is larger when the view was
+        // uncovered or invalidated as a whole, and those pixels are needed as well, so
+        // the copy is not cut down to mDirtyRect.
+        if (canvas.getClipBounds(mClipRect) && mClipRect.intersect(0, 0,
+        		mBuffer.getWidth(), mBuffer.getHeight())) {
+        	canvas.drawBitmap(mBuffer, mClipRect, mClipRect, null);
+        	mPixelsBlitted += mClipRect.width() * mClipRect.height();
+        }
+        mDirtyRect.setEmpty();
+        mFrameCount++;
+        if (mTracer != null) {
+        	mTracer.onDrawn();
         }
-        canvas.drawBitmap(mBuffer, 0, 0, null);
     }
     
-    private void drawAllKeys() {
-        if (mBuffer == null || mKeyboardChanged) {
-            if (mBuffer == null || mKeyboardChanged &&
-                    (mBuffer.getWidth() != getWidth() || mBuffer.getHeight() != getHeight())) {
-                // Make sure our bitmap is at least 1x1
-                final int width = Math.max(1, getWidth());
-                final int height = Math.max(1, getHeight());
-                mBuffer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                mCanvas = new Canvas(mBuffer);
-            }
-            mKeyboardChanged = false;
+    /**
+     * Makes the buffer of the current keyboard the one drawn into, allocating it if the
+     * keyboard has not been rendered before or the view size changed.
+     */
+    private void selectBuffer() {
+    	final RenderedKeyboard rendered = mCurrentRendered;
+        // Make sure our bitmap is at least 1x1
+        final int width = Math.max(1, getWidth());
+        final int height = Math.max(1, getHeight());
+        if (rendered.buffer == null ||
+        		rendered.buffer.getWidth() != width || rendered.buffer.getHeight() != height) {
+        	if (rendered.buffer != null) {
+        		rendered.buffer.recycle();
+        	}
+        	rendered.buffer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        	rendered.canvas = new Canvas(rendered.buffer);
+        	mDrawPending = true;
+        	// The size changed, other buffers may be too large to keep
+        	trimRendered(MAX_CACHED_KEYBOARDS, MAX_CACHED_BYTES);
         }
+        mBuffer = rendered.buffer;
+        mCanvas = rendered.canvas;
+        mKeyLooks = rendered.looks;
+        mKeyboardChanged = false;
+    }
+    
+    /**
+     * Finds the rendered keyboard of a keyboard and makes it the most recently shown.
+     * @return the rendered keyboard, null if there is none
+     */
+    private RenderedKeyboard showRendered(LatinKeyboard keyboard) {
+    	for (int i = 0; i < mRenderedCount; i++) {
+    		final RenderedKeyboard rendered = mRendered[i];
+    		if (rendered.keyboard == keyboard) {
+    			System.arraycopy(mRendered, i + 1, mRendered, i, mRenderedCount - i - 1);
+    			mRendered[mRenderedCount - 1] = rendered;
+    			return rendered;
+    		}
+    	}
+    	return null;
+    }
+    
+    /**
+     * Frees rendered keyboards, least recently shown first, until the limits are met.
+     * Key atlases are cleared first, as their cells are quick to render again, then
+     * whole keyboards are dropped. The current keyboard is never touched.
+     * @param maxKeyboards maximum number of rendered keyboards kept
+     * @param maxBytes maximum memory used by buffers and atlases of other keyboards
+     * than the current
+     */
+    private void trimRendered(int maxKeyboards, int maxBytes) {
+    	int bytes = 0;
+    	for (int i = 0; i < mRenderedCount; i++) {
+    		if (mRendered[i].keyboard != mKeyboard) {
+    			bytes += getByteCount(mRendered[i]);
+    		}
+    	}
+    	for (int i = 0; i < mRenderedCount && bytes > maxBytes; i++) {
+    		final RenderedKeyboard rendered = mRendered[i];
+    		if (rendered.keyboard != mKeyboard) {
+    			bytes -= rendered.atlas.getByteCount();
+    			rendered.atlas.clear();
+    		}
+    	}
+    	int i = 0;
+    	while (i < mRenderedCount && (mRenderedCount > maxKeyboards || bytes > maxBytes)) {
+    		final RenderedKeyboard rendered = mRendered[i];
+    		if (rendered.keyboard == mKeyboard) {
+    			i++;
+    			continue;
+    		}
+    		bytes -= getByteCount(rendered);
+    		if (rendered.buffer != null) {
+    			rendered.buffer.recycle();
+    		}
+    		rendered.atlas.clear();
+    		System.arraycopy(mRendered, i + 1, mRendered, i, mRenderedCount - i - 1);
+    		mRendered[--mRenderedCount] = null;
+    	}
+    }
+    
+    private static int getByteCount(RenderedKeyboard rendered) {
+    	int bytes = rendered.atlas.getByteCount();
+    	if (rendered.buffer != null) {
+    		bytes += rendered.buffer.getRowBytes() * rendered.buffer.getHeight();
+    	}
+    	return bytes;
+    }
+    
+    /**
+     * Releases everything rendered for keyboards other than the current one. Call when
+     * the system is running low on memory.
+     */
+    public void trimMemory() {
+    	trimRendered(1, 0);
+    }
+    
+    /**
+     * Redraws the keys whose look differs from when they were last drawn into the buffer,
+     * for instance after swapping back to the buffer of a previously shown keyboard.
+     */
+    private void drawChangedKeys() {
+    	for (int i = 0; i < mKeys.length; i++) {
+    		if (mKeyLooks[i] != mAtlas.getLook(i, getCodeIndex(i), mCapsLock)) {
+    			redrawKey(i);
+    		}
+    	}
+    }
+    
+    private void drawAllKeys() {
         final Canvas canvas = mCanvas;
-        mDirtyRect.union(0, 0, getWidth(), getHeight());
+        mDirtyRect.set(0, 0, mBuffer.getWidth(), mBuffer.getHeight());
         canvas.clipRect(mDirtyRect, Op.REPLACE);
         
         canvas.drawColor(0x00000000, PorterDuff.Mode.CLEAR);
-        Drawable bg = (Drawable) getResources().getDrawable(R.drawable.keyboard_background);
-        bg.setBounds(canvas.getClipBounds());
-        bg.draw(canvas);
+        drawKeyboardBackground(canvas);
         
         for (int i = 0; i < mKeys.length; i++) {
         	drawOneKey(canvas, i);
         }
         
         mDrawPending = false;
-        mDirtyRect.setEmpty();
+        mPixelsRendered += mDirtyRect.width() * mDirtyRect.height();
+    }
+    
+    /**
+     * Redraws a single key in the buffer, background included so that the translucent
+     * edges of the previous key image do not build up.
+     */
+    private void redrawKey(int index) {
+    	final Canvas canvas = mCanvas;
+    	final Key key = mKeys[index];
+    	final Rect rect = mKeyRect;
+    	rect.set(key.x + getPaddingLeft(), key.y + getPaddingTop(),
+    			key.x + key.width + getPaddingLeft(), key.y + key.height + getPaddingTop());
+    	canvas.clipRect(rect, Op.REPLACE);
+    	canvas.drawColor(0x00000000, PorterDuff.Mode.CLEAR);
+    	drawKeyboardBackground(canvas);
+    	drawOneKey(canvas, index);
+    	mPixelsRendered += rect.width() * rect.height();
+    }
+    
+    private void drawKeyboardBackground(Canvas canvas) {
+        if (mKeyboardBackground == null) {
+        	mKeyboardBackground = getResources().getDrawable(R.drawable.keyboard_background);
+        }
+        // Same bounds whatever is redrawn, so that partial redraws line up
+        mKeyboardBackground.setBounds(0, 0, mBuffer.getWidth(), mBuffer.getHeight());
+        mKeyboardBackground.draw(canvas);
+    }
+    
+    /** Number of times the keyboard has been drawn on screen */
+    public int getFrameCount() {
+    	return mFrameCount;
+    }
+    
+    /** Number of pixels copied from the keyboard buffer to the screen */
+    public long getPixelsBlitted() {
+    	return mPixelsBlitted;
+    }
+    
+    /** Number of pixels rasterized into the keyboard buffer */
+    public long getPixelsRendered() {
+    	return mPixelsRendered;
+    }
+    
+    /** Number of events checked for allocations, with {@link #DEBUG_ALLOCATIONS} */
+    public int getCheckedEventCount() {
+    	return sCheckedEvents;
+    }
+    
+    /** Number of checked events that allocated */
+    public int getAllocatingEventCount() {
+    	return sAllocatingEvents;
+    }
+    
+    /** Prints the results of the touch replays, if any were run */
+    public void dumpTouchReplay(PrintWriter pw, String prefix) {
+    	if (mReplay != null) {
+    		mReplay.dump(pw, prefix);
+    	}
     }
 
     private void drawOneKey(Canvas canvas, int index) {
         final LatinKey key = mKeys[index];
-        int currentcodeindex = -1;
-		if (mDownKeyIndex == index) // If one key active, only care if it is this key
-			currentcodeindex = mCurrentCodeIndex;
-		
-        int[] drawableState = key.getCurrentDrawableState();
-        Drawable keyBackground = (Drawable) getResources().getDrawable(R.drawable.key_background);
-        keyBackground.setState(drawableState);
-
-        String label = key.label == null? null : key.label.toString();
-        
-        final Rect bounds = keyBackground.getBounds();
-        if (key.width != bounds.right || 
-                key.height != bounds.bottom) {
-            keyBackground.setBounds(0, 0, key.width, key.height);
-        }
-        final Rect padding = mPadding;
-        final int kbdPaddingLeft = getPaddingLeft();
-        final int kbdPaddingTop = getPaddingTop();
-        final int color_normal  = 0xffe0e0e0;
-        final int color_current = 0xffff0000;
-
-        canvas.translate(key.x + kbdPaddingLeft, key.y + kbdPaddingTop);
-        keyBackground.draw(canvas);
-        
-    	int centerX = (key.width - padding.left - padding.right) / 2 + padding.left;
-    	int centerY = (key.height - padding.top - padding.bottom) / 2 + padding.top;
-    	int marginX = key.width / 10;
-    	int marginY = key.height / 16;
-    	
-        final Paint paint = new Paint();
-        paint.setAntiAlias(true);
-        paint.setTextAlign(Align.CENTER);
-        paint.setTypeface(Typeface.DEFAULT);
-
-    	if (label != null) {
-            // Draw the text
-        	paint.setTextSize(20);
-        	paint.setColor(currentcodeindex == 0 ? color_current : color_normal);
-            canvas.drawText(label.substring(0, 1),
-                centerX, centerY + (paint.getTextSize() - paint.descent()) / 2,
-                paint);
-            if (key.codes.length == 5) {
-            	// Draw more side letters
-            	paint.setTextAlign(Align.LEFT);
-            	paint.setTextSize(12);
-            	paint.setColor(currentcodeindex == 1 ? color_current : color_normal);
-                canvas.drawText(label.substring(1,2), padding.left + marginX,
-                		centerY + (paint.getTextSize() - paint.descent()) / 2, paint);
-            	paint.setTextAlign(Align.RIGHT);
-            	paint.setColor(currentcodeindex == 3 ? color_current : color_normal);
-                canvas.drawText(label.substring(3,4),
-                		key.width - marginX - padding.right, 
-                		centerY + (paint.getTextSize() - paint.descent()) / 2, paint);
-            	paint.setTextAlign(Align.CENTER);
-            	paint.setColor(currentcodeindex == 2 ? color_current : color_normal);
-                canvas.drawText(label.substring(2,3), centerX,
-                        padding.top + marginY + paint.getTextSize(),
-                        paint);
-            	paint.setColor(currentcodeindex == 4 ? color_current : color_normal);
-                canvas.drawText(label.substring(4,5), centerX,
-                        key.height - marginY - padding.bottom - paint.descent(),
-                        paint);
-            }
-        } else if (key.icon != null) {
-            final int drawableX = (key.width - padding.left - padding.right 
-                            - key.icon.getIntrinsicWidth()) / 2 + padding.left;
-            final int drawableY = (key.height - padding.top - padding.bottom 
-                    - key.icon.getIntrinsicHeight()) / 2 + padding.top;
-            canvas.translate(drawableX, drawableY);
-            key.icon.setBounds(0, 0, 
-                    key.icon.getIntrinsicWidth(), key.icon.getIntrinsicHeight());
-            key.icon.draw(canvas);
-            canvas.translate(-drawableX, -drawableY);
-            
-            if (key.codes[0] == LatinKeyboard.KEYCODE_SHIFT &&
-            		mCapsLock) {
-            	// Special handling of caps lock
-            	final String lock = "LOCK";
-            	paint.setTextSize(12);
-            	paint.setTextAlign(Align.CENTER);
-            	paint.setColor(color_normal);
-                canvas.drawText(lock, centerX, padding.top + marginY + paint.getTextSize(), paint);
-            }
-        }
-        canvas.translate(-key.x - kbdPaddingLeft, -key.y - kbdPaddingTop);
+        final int currentcodeindex = getCodeIndex(index);
+        mKeyLooks[index] = mAtlas.getLook(index, currentcodeindex, mCapsLock);
+		mAtlas.drawKey(canvas, index, currentcodeindex, mCapsLock,
+				key.x + getPaddingLeft(), key.y + getPaddingTop());
     }
     
-    int mDownKeyIndex = NOT_A_KEY;
-    int mDownKeyX;
-    int mDownKeyY;
-
-	int mCurrentCodeIndex = -1; // current letter while touch down
+    /**
+     * Returns the selected letter (code index) of a key, -1 if the key is not held. If
+     * several pointers hold the same key the one pressed last decides.
+     */
+    private int getCodeIndex(int index) {
+    	int codeIndex = -1;
+    	int order = -1;
+    	for (int id = 0; id < MAX_POINTERS; id++) {
+    		if (mPointerKey[id] == index && !mPointerReleased[id] && mPointerOrder[id] > order) {
+    			codeIndex = mPointerCodeIndex[id];
+    			order = mPointerOrder[id];
+    		}
+    	}
+    	return codeIndex;
+    }
+    
+    /** Pointer ids handled, higher ids are ignored */
+    private static final int MAX_POINTERS = 10;
+    
+    // Per pointer state, indexed by pointer id
+    /** Key held by the pointer or NOT_A_KEY if the pointer is not down */
+    private final int[] mPointerKey = new int[MAX_POINTERS];
+    /** Where the pointer went down, to find the key again if the keyboard changes */
+    private final int[] mPointerDownX = new int[MAX_POINTERS];
+    private final int[] mPointerDownY = new int[MAX_POINTERS];
+    /** Current letter (code index) of the pointer */
+    private final int[] mPointerCodeIndex = new int[MAX_POINTERS];
+    /** Whether the code of the pointer has been sent, by repeat or on press */
+    private final boolean[] mPointerSent = new boolean[MAX_POINTERS];
+    /** Whether the pointer is up but waits for older pointers before its code is sent */
+    private final boolean[] mPointerReleased = new boolean[MAX_POINTERS];
+    /** Order the pointers went down in, increasing */
+    private final int[] mPointerOrder = new int[MAX_POINTERS];
+    private int mNextOrder;
+    /** Key class, absolute time of the next repeat and repeats so far */
+    private final int[] mRepeatClass = new int[MAX_POINTERS];
+    private final long[] mRepeatDeadline = new long[MAX_POINTERS];
+    private final int[] mRepeatCount = new int[MAX_POINTERS];
+    /** Whether a flick has fixed the side letter of the pointer */
+    private final boolean[] mPointerLatched = new boolean[MAX_POINTERS];
+    /** Last touch sample and smoothed velocity in pixels per millisecond */
+    private final int[] mPointerLastX = new int[MAX_POINTERS];
+    private final int[] mPointerLastY = new int[MAX_POINTERS];
+    private final long[] mPointerLastTime = new long[MAX_POINTERS];
+    private final float[] mPointerVelocityX = new float[MAX_POINTERS];
+    private final float[] mPointerVelocityY = new float[MAX_POINTERS];
+    
+    /** A flick must reach this fraction of the key size past the key edge */
+    private static final float FLICK_MIN_OVERSHOOT = 0.25f;
+    /** and move at least this many key sizes per millisecond in that direction */
+    private static final float FLICK_MIN_SPEED = 0.004f;
+    /** Samples further apart than this do not give a useful velocity */
+    private static final int VELOCITY_MAX_GAP = 100;
+    
+    {
+    	for (int id = 0; id < MAX_POINTERS; id++) {
+    		mPointerKey[id] = NOT_A_KEY;
+    	}
+    }
     
     @Override
     public boolean onTouchEvent(MotionEvent me) {
-//        final int pointerCount = me.getPointerCount();
-        final int action = me.getAction();
-        boolean result = false;
-//        final long now = me.getEventTime();
-        int touchX = (int) me.getX() - getPaddingLeft();
-        int touchY = (int) me.getY() - getPaddingTop() + VERTICAL_CORRECTION;
+    	if (mTracer != null) {
+    		mTracer.onTouch();
+    	}
+    	if (DEBUG_ALLOCATIONS) {
+    		startAllocationCheck();
+    		boolean result = handleTouchEvent(me);
+    		endAllocationCheck("touch action", me.getAction());
+    		return result;
+    	}
+    	return handleTouchEvent(me);
+    }
+    
+    private boolean handleTouchEvent(MotionEvent me) {
+        if (mKeys == null) return false;
+        final int action = MultiTouch.getActionMasked(me);
+        final int paddingLeft = getPaddingLeft();
+        final int paddingTop = getPaddingTop();
         
-        if (action == MotionEvent.ACTION_DOWN) {
-        	mDownKeyIndex = getKeyIndex(touchX, touchY);
-        	mDownKeyX = touchX;
-        	mDownKeyY = touchY;
-        	if (mDownKeyIndex != NOT_A_KEY) {
-        		LatinKey key = mKeys[mDownKeyIndex];
-        		key.setPressed(true);
-        		mCurrentCodeIndex = 0;
-	        	invalidateKey(mDownKeyIndex);
-	        	initRepeat(key);
-	        	if (key.repeatable) {
-	                sendCurrentCode(); // for explicitly repeatable marked keys, send key directly
-	        	}
+        switch (action) {
+        	case MotionEvent.ACTION_DOWN:
+        	case MotionEvent.ACTION_POINTER_DOWN: {
+        		final int index = action == MotionEvent.ACTION_DOWN ? 0
+        				: MultiTouch.getActionIndex(me);
+        		pointerDown(MultiTouch.getPointerId(me, index),
+        				(int) MultiTouch.getX(me, index) - paddingLeft,
+        				(int) MultiTouch.getY(me, index) - paddingTop, me.getEventTime());
+        		return true;
         	}
-        	result = true;
-        } else if (action == MotionEvent.ACTION_MOVE) {
-        	if (mDownKeyIndex != NOT_A_KEY) {
-        		Key key = mKeys[mDownKeyIndex];
-        		// Movement might also change current code (letter)
-        		int oldindex = mCurrentCodeIndex;
-        		updateCurrentCodeIndex(key, touchX, touchY);
-        		if (mCurrentCodeIndex != oldindex) {
-        			invalidateKey(mDownKeyIndex);
-                	// New letter/code resets repeat
-                	mHandler.removeMessages(MSG_REPEAT);
-            		initRepeat(key);
+        	case MotionEvent.ACTION_MOVE: {
+        		final int count = MultiTouch.getPointerCount(me);
+        		final int history = me.getHistorySize();
+        		for (int index = 0; index < count; index++) {
+        			final int id = MultiTouch.getPointerId(me, index);
+        			// Samples batched since the last event, a quick flick may be all there
+        			for (int pos = 0; pos < history; pos++) {
+        				pointerMove(id,
+        						(int) MultiTouch.getHistoricalX(me, index, pos) - paddingLeft,
+        						(int) MultiTouch.getHistoricalY(me, index, pos) - paddingTop,
+        						me.getHistoricalEventTime(pos));
+        			}
+        			pointerMove(id,
+        					(int) MultiTouch.getX(me, index) - paddingLeft,
+        					(int) MultiTouch.getY(me, index) - paddingTop, me.getEventTime());
         		}
+        		return true;
         	}
-        } else if (action == MotionEvent.ACTION_UP) {
-        	if (mDownKeyIndex != NOT_A_KEY) {
-        		Key key = mKeys[mDownKeyIndex];
-            	if (!mRepeating) {
-            		updateCurrentCodeIndex(key, touchX, touchY);
-	        		sendCurrentCode();
-            	}
-            	endMotion();
-    			result = true;
+        	case MotionEvent.ACTION_UP:
+        	case MotionEvent.ACTION_POINTER_UP: {
+        		final int index = action == MotionEvent.ACTION_UP ? 0
+        				: MultiTouch.getActionIndex(me);
+        		pointerUp(MultiTouch.getPointerId(me, index),
+        				(int) MultiTouch.getX(me, index) - paddingLeft,
+        				(int) MultiTouch.getY(me, index) - paddingTop);
+        		if (action == MotionEvent.ACTION_UP) {
+        			// Last pointer up, nothing can still be held
+        			releaseAllMotions();
+        		}
+        		return true;
         	}
-        } else if (action == MotionEvent.ACTION_CANCEL) {
-        	endMotion();
-			result = true;
+        	case MotionEvent.ACTION_CANCEL:
+        		endAllMotions();
+        		return true;
         }
-        
-        return result;
-    }
-    
-    private void updateCurrentCodeIndex(Key key, int touchX, int touchY) {
-		mCurrentCodeIndex = -1;
-		if (key.isInside(touchX, touchY)) {
-			mCurrentCodeIndex = 0;
-		} else if (key.codes.length == 5) {
-			if (touchY < key.y) {
-    			mCurrentCodeIndex = 2;
-			} else if (touchY >= key.y + key.height) {
-    			mCurrentCodeIndex = 4;
-			} else if (touchX < key.x) {
-    			mCurrentCodeIndex = 1;
-			} else if (touchX >= key.x + key.width) {
-    			mCurrentCodeIndex = 3;
-			}
-		}		
+        return false;
+    }
+    
+    /*
+     * Rollover: when the next key goes down before the previous is lifted, both are
+     * tracked, each with its own letter selection and repeat. Codes are sent in the
+     * order the keys were pressed. A pointer lifted while an older one is still held
+     * waits for it, see sendReleased().
+     */
+    
+    private void pointerDown(int id, int touchX, int touchY, long time) {
+    	if (id < 0 || id >= MAX_POINTERS) return;
+    	if (mPointerKey[id] != NOT_A_KEY) {
+    		// Missed the up of this pointer
+    		endMotion(id);
+    		sendReleased();
+    	}
+    	final int keyIndex = getKeyIndex(touchX, touchY);
+    	mPointerDownX[id] = touchX;
+    	mPointerDownY[id] = touchY;
+    	mPointerOrder[id] = mNextOrder++;
+    	mPointerReleased[id] = false;
+    	mPointerLatched[id] = false;
+    	mPointerLastX[id] = touchX;
+    	mPointerLastY[id] = touchY;
+    	mPointerLastTime[id] = time;
+    	mPointerVelocityX[id] = 0;
+    	mPointerVelocityY[id] = 0;
+    	mPointerKey[id] = keyIndex;
+    	if (keyIndex != NOT_A_KEY) {
+    		LatinKey key = mKeys[keyIndex];
+    		key.setPressed(true);
+    		mPointerCodeIndex[id] = 0;
+    		invalidateKey(keyIndex);
+    		initRepeat(id, key);
+    		if (key.repeatable) {
+    			// for explicitly repeatable marked keys, send key directly
+    			sendOlder(id);
+    			sendCurrentCode(id);
+    		}
+    	}
+    }
+    
+    private void pointerMove(int id, int touchX, int touchY, long time) {
+    	if (id < 0 || id >= MAX_POINTERS || mPointerKey[id] == NOT_A_KEY
+    			|| mPointerReleased[id] || mPointerLatched[id]) {
+    		return;
+    	}
+    	updateVelocity(id, touchX, touchY, time);
+    	// Movement might also change current code (letter)
+    	final int oldIndex = mPointerCodeIndex[id];
+    	updateCurrentCodeIndex(id, touchX, touchY);
+    	if (isFlick(id, touchX, touchY)) {
+    		// The direction is clear, send the side letter now instead of at release
+    		// and ignore the finger coming back
+    		mPointerLatched[id] = true;
+    		invalidateKey(mPointerKey[id]);
+    		mHandler.removeMessages(MSG_REPEAT + id);
+    		sendOlder(id);
+    		sendCurrentCode(id);
+    		mPointerSent[id] = true;
+    		if (mPointerKey[id] != NOT_A_KEY) {
+    			// Held on after the flick, repeat as usual
+    			startRepeat(id, REPEAT_CHARACTER);
+    		}
+    	} else if (mPointerCodeIndex[id] != oldIndex) {
+    		invalidateKey(mPointerKey[id]);
+    		// New letter/code resets repeat
+    		mHandler.removeMessages(MSG_REPEAT + id);
+    		initRepeat(id, mKeys[mPointerKey[id]]);
+    	}
+    }
+    
+    private void updateVelocity(int id, int touchX, int touchY, long time) {
+    	final long dt = time - mPointerLastTime[id];
+    	if (dt > VELOCITY_MAX_GAP) {
+    		mPointerVelocityX[id] = 0;
+    		mPointerVelocityY[id] = 0;
+    	} else if (dt > 0) {
+    		// Average with the previous velocity to smooth out jittery samples
+    		mPointerVelocityX[id] = (mPointerVelocityX[id] + (touchX - mPointerLastX[id]) / (float) dt) / 2;
+    		mPointerVelocityY[id] = (mPointerVelocityY[id] + (touchY - mPointerLastY[id]) / (float) dt) / 2;
+    	}
+    	mPointerLastX[id] = touchX;
+    	mPointerLastY[id] = touchY;
+    	mPointerLastTime[id] = time;
+    }
+    
+    /**
+     * Returns whether the pointer is on a side letter and has moved there fast enough
+     * and far enough that the side letter can be sent right away.
+     */
+    private boolean isFlick(int id, int touchX, int touchY) {
+    	final int keyIndex = mPointerKey[id];
+    	final int codeIndex = mPointerCodeIndex[id];
+    	if (codeIndex < 1 || mPointerSent[id]) {
+    		return false;
+    	}
+    	final int size = mKeyGrid.getSideSize(keyIndex, codeIndex);
+    	if (mKeyGrid.getOvershoot(keyIndex, codeIndex, touchX, touchY) < size * FLICK_MIN_OVERSHOOT) {
+    		return false;
+    	}
+    	final float vx = mPointerVelocityX[id];
+    	final float vy = mPointerVelocityY[id];
+    	final float minSpeed = size * FLICK_MIN_SPEED;
+    	switch (codeIndex) {
+    		case 1: return -vx > minSpeed && -vx > Math.abs(vy);
+    		case 2: return -vy > minSpeed && -vy > Math.abs(vx);
+    		case 3: return vx > minSpeed && vx > Math.abs(vy);
+    		case 4: return vy > minSpeed && vy > Math.abs(vx);
+    	}
+    	return false;
+    }
+    
+    private void pointerUp(int id, int touchX, int touchY) {
+    	if (id < 0 || id >= MAX_POINTERS || mPointerKey[id] == NOT_A_KEY
+    			|| mPointerReleased[id]) {
+    		return;
+    	}
+    	if (mPointerSent[id]) {
+    		// Repeated or flicked, nothing more to send
+    		endMotion(id);
+    	} else {
+    		updateCurrentCodeIndex(id, touchX, touchY);
+    		mHandler.removeMessages(MSG_REPEAT + id);
+    		mPointerReleased[id] = true;
+    		final int keyIndex = mPointerKey[id];
+    		if (!isHeld(keyIndex)) {
+    			mKeys[keyIndex].setPressed(false);
+    		}
+    		invalidateKey(keyIndex);
+    	}
+    	sendReleased();
+    }
+    
+    /**
+     * Sends the codes of released pointers, oldest first, stopping at the first
+     * pointer still held whose code has not been sent.
+     */
+    private void sendReleased() {
+    	for (int id = nextPointer(-1); id >= 0; id = nextPointer(mPointerOrder[id])) {
+    		if (mPointerReleased[id]) {
+    			sendCurrentCode(id);
+    			endMotion(id);
+    		} else if (!mPointerSent[id]) {
+    			return;
+    		}
+    	}
+    }
+    
+    /**
+     * Sends the codes of all pointers pressed before the given one that have not been
+     * sent yet, before the given pointer sends a code of its own.
+     */
+    private void sendOlder(int id) {
+    	final int order = mPointerOrder[id];
+    	for (int other = nextPointer(-1); other >= 0 && mPointerOrder[other] < order;
+    			other = nextPointer(mPointerOrder[other])) {
+    		if (!mPointerSent[other]) {
+    			sendCurrentCode(other);
+    			if (mPointerReleased[other]) {
+    				endMotion(other);
+    			} else {
+    				// Held on, it goes on as a repeat
+    				mPointerSent[other] = true;
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Returns the tracked pointer pressed next after the given down order, -1 if none.
+     */
+    private int nextPointer(int afterOrder) {
+    	int next = -1;
+    	for (int id = 0; id < MAX_POINTERS; id++) {
+    		if (mPointerKey[id] != NOT_A_KEY && mPointerOrder[id] > afterOrder
+    				&& (next < 0 || mPointerOrder[id] < mPointerOrder[next])) {
+    			next = id;
+    		}
+    	}
+    	return next;
+    }
+    
+    /** Whether a pointer still holds a key down */
+    private boolean isHeld(int keyIndex) {
+    	for (int id = 0; id < MAX_POINTERS; id++) {
+    		if (mPointerKey[id] == keyIndex && !mPointerReleased[id]) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    private void updateCurrentCodeIndex(int id, int touchX, int touchY) {
+		mPointerCodeIndex[id] = mKeyGrid.getCodeIndex(mPointerKey[id], touchX, touchY);
 	}
 
-	private void initRepeat(Key key) {
-        Message msg = mHandler.obtainMessage(MSG_REPEAT);
-        mRepeating = false;
-    	if (key.repeatable) {
-            mHandler.sendMessageDelayed(msg, REPEAT_START_DELAY);
-            mRepeating = true;
+	private void initRepeat(int id, Key key) {
+		// Explicitly repeatable keys have sent their code on press
+		mPointerSent[id] = key.repeatable;
+		final int code = key.codes[0];
+    	if (!key.repeatable) {
+    		startRepeat(id, REPEAT_CHARACTER);
+    	} else if (code <= LatinKeyboard.KEYCODE_LEFT && code >= LatinKeyboard.KEYCODE_HOME) {
+    		startRepeat(id, REPEAT_ARROW);
     	} else {
-            mHandler.sendMessageDelayed(msg, REPEAT_START_DELAY_CHARS);
+    		startRepeat(id, REPEAT_DELETE);
     	}
 	}
+	
+	private void startRepeat(int id, int repeatClass) {
+		mRepeatClass[id] = repeatClass;
+		mRepeatCount[id] = 0;
+		mRepeatDeadline[id] = SystemClock.uptimeMillis() + mRepeatStartDelay[repeatClass];
+		mHandler.removeMessages(MSG_REPEAT + id);
+		mHandler.sendEmptyMessageAtTime(MSG_REPEAT + id, mRepeatDeadline[id]);
+	}
+	
+	/** Milliseconds from the current to the next repeat of a pointer */
+	private int getRepeatInterval(int id) {
+		final int repeatClass = mRepeatClass[id];
+		final int ramp = mRepeatRamp[repeatClass];
+		final int interval = mRepeatInterval[repeatClass];
+		final int min = mRepeatMinInterval[repeatClass];
+		if (ramp == 0) {
+			return interval;
+		} else if (mRepeatCount[id] >= ramp) {
+			return min;
+		}
+		return interval - (interval - min) * mRepeatCount[id] / ramp;
+	}
+	
+	private static boolean sCountingAllocations;
+	private static int sCheckedEvents;
+	private static int sAllocatingEvents;
+	
+	private static void startAllocationCheck() {
+		if (!sCountingAllocations) {
+			Debug.startAllocCounting();
+			sCountingAllocations = true;
+		}
+		Debug.resetThreadAllocCount();
+	}
+	
+	private static void endAllocationCheck(String what, int detail) {
+		final int count = Debug.getThreadAllocCount();
+		sCheckedEvents++;
+		if (count > 0) {
+			sAllocatingEvents++;
+			Log.w(TAG, count + " allocations handling " + what + " " + detail);
+		}
+	}
 
-	private void endMotion() {
-    	if (mDownKeyIndex != NOT_A_KEY) {
-    		LatinKey key = mKeys[mDownKeyIndex];
-        	mRepeating = false;
-        	mHandler.removeMessages(MSG_REPEAT);
-    		key.setPressed(false);
-			mCurrentCodeIndex = -1;
-        	invalidateKey(mDownKeyIndex);
-			mDownKeyIndex = NOT_A_KEY;
+	private void endMotion(int id) {
+		final int keyIndex = mPointerKey[id];
+    	if (keyIndex != NOT_A_KEY) {
+        	mHandler.removeMessages(MSG_REPEAT + id);
+			mPointerKey[id] = NOT_A_KEY;
+			mPointerCodeIndex[id] = -1;
+			mPointerReleased[id] = false;
+			mPointerLatched[id] = false;
+			if (!isHeld(keyIndex)) {
+				mKeys[keyIndex].setPressed(false);
+			}
+        	invalidateKey(keyIndex);
     	}
 	}
+	
+	/**
+	 * Stops tracking all pointers when the last one is up. Pointers whose up was
+	 * missed count as released, so codes still waiting are sent in press order.
+	 */
+	private void releaseAllMotions() {
+		for (int id = 0; id < MAX_POINTERS; id++) {
+			if (mPointerKey[id] != NOT_A_KEY && !mPointerSent[id]) {
+				mPointerReleased[id] = true;
+			}
+		}
+		sendReleased();
+		endAllMotions();
+	}
+	
+	/**
+	 * Stops tracking all pointers without sending anything more.
+	 */
+	private void endAllMotions() {
+		for (int id = 0; id < MAX_POINTERS; id++) {
+			endMotion(id);
+		}
+	}
 
 	private int getKeyIndex(int x, int y) {
-        final Key[] keys = mKeys;
-        int primaryIndex = NOT_A_KEY;
-        int [] nearestKeyIndices = mKeyboard.getNearestKeys(x, y);
-        final int keyCount = nearestKeyIndices.length;
-        for (int i = 0; i < keyCount; i++) {
-            final Key key = keys[nearestKeyIndices[i]];
-            boolean isInside = key.isInside(x,y);
-            if (isInside) {
-                primaryIndex = nearestKeyIndices[i];
-            }
-        }
-        return primaryIndex;
-    }
-    
-    private void sendCurrentCode() {
-    	if (mDownKeyIndex != NOT_A_KEY) {
-    		Key key = mKeys[mDownKeyIndex];
-			int code = LatinKeyboard.KEYCODE_NOTUSED;
-			if (mCurrentCodeIndex >= 0)
-				code = key.codes[mCurrentCodeIndex];
-			if (code != LatinKeyboard.KEYCODE_NOTUSED) {
-				mKeyboardActionListener.onKey(code);
-				mKeyboardActionListener.onRelease(code);
+        return mKeyGrid.getKeyIndex(x, y);
+    }
+    
+    private void sendCurrentCode(int id) {
+    	final int code = getCurrentCode(id);
+		if (code != LatinKeyboard.KEYCODE_NOTUSED) {
+			if (mTracer != null) {
+				mTracer.onResolved(code);
+			}
+			mKeyboardActionListener.onKey(code);
+			mKeyboardActionListener.onRelease(code);
+		}
+    }
+    
+    private void sendRepeat(int id, int count) {
+    	final int code = getCurrentCode(id);
+		if (code != LatinKeyboard.KEYCODE_NOTUSED) {
+			if (mTracer != null) {
+				mTracer.onResolved(code);
 			}
+			mKeyboardActionListener.onRepeat(code, count);
+			mKeyboardActionListener.onRelease(code);
+		}
+    }
+    
+    private int getCurrentCode(int id) {
+    	final int keyIndex = mPointerKey[id];
+    	if (keyIndex != NOT_A_KEY && mPointerCodeIndex[id] >= 0) {
+    		return mKeys[keyIndex].codes[mPointerCodeIndex[id]];
     	}
+    	return LatinKeyboard.KEYCODE_NOTUSED;
     }
 }
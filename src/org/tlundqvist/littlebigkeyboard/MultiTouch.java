@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.os.Build;
+import android.view.MotionEvent;
+
+/**
+ * Access to the multi-touch parts of {@link MotionEvent}, which only exist from
+ * Android 2.0 (API level 5). On older versions there is always a single pointer
+ * with id 0. The API 5 calls live in a nested class that is only loaded when the
+ * platform has them.
+ */
+public class MultiTouch {
+
+	/** Whether the platform reports more than one pointer */
+	public static final boolean SUPPORTED = getSdkVersion() >= 5;
+
+	private static int getSdkVersion() {
+		try {
+			// Build.VERSION.SDK_INT is API 4
+			return Integer.parseInt(Build.VERSION.SDK);
+		} catch (NumberFormatException e) {
+			return 3;
+		}
+	}
+
+	/** Action without the pointer index bits */
+	public static int getActionMasked(MotionEvent me) {
+		return me.getAction() & MotionEvent.ACTION_MASK;
+	}
+
+	/** Pointer index of a pointer down or up action */
+	public static int getActionIndex(MotionEvent me) {
+		return (me.getAction() & MotionEvent.ACTION_POINTER_ID_MASK)
+				>> MotionEvent.ACTION_POINTER_ID_SHIFT;
+	}
+
+	public static int getPointerCount(MotionEvent me) {
+		return SUPPORTED ? Api5.getPointerCount(me) : 1;
+	}
+
+	public static int getPointerId(MotionEvent me, int index) {
+		return SUPPORTED ? Api5.getPointerId(me, index) : 0;
+	}
+
+	public static float getX(MotionEvent me, int index) {
+		return SUPPORTED ? Api5.getX(me, index) : me.getX();
+	}
+
+	public static float getY(MotionEvent me, int index) {
+		return SUPPORTED ? Api5.getY(me, index) : me.getY();
+	}
+
+	/** Historical x of a pointer, see {@link MotionEvent#getHistoricalX(int)} */
+	public static float getHistoricalX(MotionEvent me, int index, int pos) {
+		return SUPPORTED ? Api5.getHistoricalX(me, index, pos) : me.getHistoricalX(pos);
+	}
+
+	/** Historical y of a pointer, see {@link MotionEvent#getHistoricalY(int)} */
+	public static float getHistoricalY(MotionEvent me, int index, int pos) {
+		return SUPPORTED ? Api5.getHistoricalY(me, index, pos) : me.getHistoricalY(pos);
+	}
+
+	private static class Api5 {
+		static int getPointerCount(MotionEvent me) {
+			return me.getPointerCount();
+		}
+
+		static int getPointerId(MotionEvent me, int index) {
+			return me.getPointerId(index);
+		}
+
+		static float getX(MotionEvent me, int index) {
+			return me.getX(index);
+		}
+
+		static float getY(MotionEvent me, int index) {
+			return me.getY(index);
+		}
+
+		static float getHistoricalX(MotionEvent me, int index, int pos) {
+			return me.getHistoricalX(index, pos);
+		}
+
+		static float getHistoricalY(MotionEvent me, int index, int pos) {
+			return me.getHistoricalY(index, pos);
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.inputmethodservice.InputMethodService;
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.view.KeyEvent;
+import android.view.inputmethod.InputConnection;
+
+/**
+ * Collects deletions, characters and cursor movements going to the editor and sends
+ * them in one batch edit. Everything queued during one round of the main loop (a burst of
+ * touch events, key repeats catching up after a stall) ends up in a single
+ * commitText() call instead of one call to the editor per character.
+ *
+ * Output queued after the editor has been idle for the flush delay is sent as soon
+ * as the events queued with it are handled, so a single keystroke is not held
+ * back. Output following closely on the previous flush waits until the flush delay
+ * has passed since it, which is what collects fast typing and key repeats into
+ * batches. Anything that needs to see the editor text up to date must call
+ * {@link #flush()} first.
+ *
+ * Cursor movements are sent as one setSelection() when the {@link CursorNavigator}
+ * knows where the cursor is, and as arrow key events otherwise.
+ */
+public class OutputBatcher {
+
+	/**
+	 * Called after queued output has been sent to the editor.
+	 */
+	public interface Listener {
+		void onOutputFlushed();
+	}
+
+	private static final int MSG_FLUSH = 1;
+
+	private final InputMethodService mService;
+	private final Listener mListener;
+	private final TextContext mTextContext;
+	/** Characters to delete before the cursor, sent before mText */
+	private int mDeletes;
+	/** Whether the first delete is sent as a key event, see {@link #queueDelete} */
+	private boolean mDeleteKeyEvent;
+	private final StringBuilder mText = new StringBuilder();
+	/** Net cursor movement queued after mText, positive is to the right */
+	private int mCursorMove;
+	/** Whether anything was queued since the last flush, even if it cancelled out */
+	private boolean mPending;
+	/** Shortest time between two flushes that were not asked for */
+	private final int mFlushDelay;
+	/** Uptime of the last flush that sent something */
+	private long mLastFlushTime;
+
+	/** Statistics, characters and cursor moves queued and batches sent */
+	private int mQueued;
+	private int mBatches;
+
+	private final Handler mHandler = new Handler() {
+		@Override
+		public void handleMessage(Message msg) {
+			switch (msg.what) {
+				case MSG_FLUSH:
+					flush();
+					break;
+			}
+		}
+	};
+
+	/**
+	 * @param service the input method
+	 * @param listener told when queued output has been sent
+	 * @param textContext local text model, told about everything sent
+	 * @param flushDelay shortest time in milliseconds between flushes of queued
+	 * output, 0 always sends it when the main loop has handled the events queued
+	 * with it
+	 */
+	public OutputBatcher(InputMethodService service, Listener listener,
+			TextContext textContext, int flushDelay) {
+		mService = service;
+		mListener = listener;
+		mTextContext = textContext;
+		mFlushDelay = Math.max(0, flushDelay);
+	}
+
+	/**
+	 * Queues a character to be committed.
+	 */
+	public void queueCharacter(int code) {
+		if (mCursorMove != 0) {
+			// Keep order, the move must happen before this character
+			flush();
+		}
+		mText.append((char) code);
+		queued();
+	}
+
+	/**
+	 * Queues deletion of characters before the cursor, like pressing delete. Queued
+	 * characters not sent yet are simply dropped.
+	 * @param count number of characters to delete
+	 */
+	public void queueDelete(int count) {
+		queueDelete(count, true);
+	}
+
+	/**
+	 * Queues deletion of characters before the cursor.
+	 * @param count number of characters to delete
+	 * @param keyEvent whether the first one is sent as a delete key event, which
+	 * also deletes a selection. Otherwise all go in one deleteSurroundingText(),
+	 * for instance while the delete key repeats.
+	 */
+	public void queueDelete(int count, boolean keyEvent) {
+		if (mCursorMove != 0) {
+			flush();
+		}
+		final int cancelled = Math.min(count, mText.length());
+		mText.setLength(mText.length() - cancelled);
+		if (count > cancelled) {
+			mDeletes += count - cancelled;
+			mDeleteKeyEvent |= keyEvent;
+		}
+		queued();
+	}
+
+	/**
+	 * Queues a cursor movement.
+	 * @param delta number of characters to move, negative to the left
+	 */
+	public void queueCursorMove(int delta) {
+		mCursorMove += delta;
+		queued();
+	}
+
+	private void queued() {
+		mQueued++;
+		mPending = true;
+		if (!mHandler.hasMessages(MSG_FLUSH)) {
+			final long idle = SystemClock.uptimeMillis() - mLastFlushTime;
+			mHandler.sendEmptyMessageDelayed(MSG_FLUSH,
+					idle >= mFlushDelay ? 0 : mFlushDelay - idle);
+		}
+	}
+
+	/**
+	 * Returns whether there is queued output not yet sent to the editor.
+	 */
+	public boolean isEmpty() {
+		return mDeletes == 0 && mText.length() == 0 && mCursorMove == 0;
+	}
+
+	/**
+	 * Sends all queued output to the editor in one batch edit.
+	 */
+	public void flush() {
+		mHandler.removeMessages(MSG_FLUSH);
+		if (!mPending) {
+			return;
+		}
+		InputConnection ic = mService.getCurrentInputConnection();
+		if (ic != null && !isEmpty()) {
+			ic.beginBatchEdit();
+			int deletes = mDeletes;
+			if (deletes > 0 && mDeleteKeyEvent) {
+				// The first as a key event, which also deletes a selection
+				mService.sendDownUpKeyEvents(KeyEvent.KEYCODE_DEL);
+				mTextContext.onDeleted(1);
+				deletes--;
+			}
+			if (deletes > 0) {
+				ic.deleteSurroundingText(deletes, 0);
+				mTextContext.onDeleted(deletes);
+			}
+			if (mText.length() == 1) {
+				ic.commitText(charString(mText.charAt(0)), 1);
+			} else if (mText.length() > 1) {
+				ic.commitText(mText.toString(), 1);
+			}
+			if (mText.length() > 0) {
+				mTextContext.onCommitted(mText);
+			}
+			if (mCursorMove != 0) {
+				if (mTextContext.getNavigator().moveBy(mCursorMove, ic)) {
+					mTextContext.onCursorMoved();
+				} else {
+					// Arrow keys stop at line and text ends, where the cursor lands is
+					// unknown
+					mTextContext.invalidate();
+					final int keyCode = mCursorMove < 0 ?
+							KeyEvent.KEYCODE_DPAD_LEFT : KeyEvent.KEYCODE_DPAD_RIGHT;
+					for (int i = Math.abs(mCursorMove); i > 0; i--) {
+						mService.sendDownUpKeyEvents(keyCode);
+					}
+				}
+			}
+			ic.endBatchEdit();
+			mTextContext.onEditDone();
+			mBatches++;
+			mLastFlushTime = SystemClock.uptimeMillis();
+		}
+		discard();
+		mListener.onOutputFlushed();
+	}
+
+	/**
+	 * Drops all queued output, for instance when the editor changed.
+	 */
+	public void discard() {
+		mHandler.removeMessages(MSG_FLUSH);
+		mDeletes = 0;
+		mDeleteKeyEvent = false;
+		mText.setLength(0);
+		mCursorMove = 0;
+		mPending = false;
+	}
+
+	/** Number of characters and cursor moves queued so far */
+	public int getQueuedCount() {
+		return mQueued;
+	}
+
+	/** Number of batch edits sent to the editor so far */
+	public int getBatchCount() {
+		return mBatches;
+	}
+
+	/**
+	 * Single character strings handed to the editor, created once per character so
+	 * that typing does not allocate.
+	 */
+	private static final String[] sLatinStrings = new String[0x250];
+	private static final SparseArray<String> sOtherStrings = new SparseArray<String>();
+
+	/**
+	 * Returns a shared string holding one character.
+	 */
+	public static String charString(int c) {
+		String s;
+		if (c >= 0 && c < sLatinStrings.length) {
+			s = sLatinStrings[c];
+			if (s == null) {
+				s = sLatinStrings[c] = String.valueOf((char) c);
+			}
+		} else {
+			s = sOtherStrings.get(c);
+			if (s == null) {
+				s = String.valueOf((char) c);
+				sOtherStrings.put(c, s);
+			}
+		}
+		return s;
+	}
+}
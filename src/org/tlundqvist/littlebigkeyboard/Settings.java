@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.preference.PreferenceActivity;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Settings of the input method, opened from the system input method settings.
+ */
+public class Settings extends PreferenceActivity
+		implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+	private static final String TAG = "Settings";
+
+	/** Whether to suggest words from the dictionaries, off by default */
+	public static final String PREF_SUGGEST_WORDS = "suggest_words";
+	/** Abbreviations as text, see {@link Abbreviations} */
+	public static final String PREF_ABBREVIATIONS = "abbreviations";
+
+	@Override
+	protected void onCreate(Bundle icicle) {
+		super.onCreate(icicle);
+		addPreferencesFromResource(R.xml.prefs);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		PreferenceManager.getDefaultSharedPreferences(this)
+				.registerOnSharedPreferenceChangeListener(this);
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		PreferenceManager.getDefaultSharedPreferences(this)
+				.unregisterOnSharedPreferenceChangeListener(this);
+	}
+
+	public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+		if (PREF_ABBREVIATIONS.equals(key)) {
+			// Compiled here so that the keyboard only has to read the result
+			final File file = new File(getFilesDir(), Abbreviations.FILE_NAME);
+			try {
+				Abbreviations.compile(prefs.getString(key, ""), file);
+			} catch (IOException e) {
+				Log.w(TAG, "Could not write " + file, e);
+			}
+		}
+	}
+}
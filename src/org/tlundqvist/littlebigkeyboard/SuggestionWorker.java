@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * Looks up word suggestions on a background thread so that typing never waits for
+ * them. The main thread follows the typed word and hands each new version of it
+ * over; results come back to the {@link Listener} on the main thread.
+ *
+ * Only the latest word is looked up. There is a single request slot, a new word
+ * replaces one not started yet, and every change of the word increases a
+ * generation counter. A lookup whose generation is no longer current stops early
+ * and its result is dropped. A lookup still running at its deadline stops and
+ * delivers the suggestions found so far.
+ *
+ * The thread also writes the words the user types to {@link LearnedWords}, which
+ * are suggested along with the dictionary words.
+ */
+public class SuggestionWorker {
+
+	/**
+	 * Receives suggestions on the main thread.
+	 */
+	public interface Listener {
+		void onSuggestions(CandidateList suggestions);
+	}
+
+	/** Milliseconds from a keystroke until its lookup delivers what it has */
+	private static final int DEADLINE = 100;
+
+	/** Milliseconds learned words are collected before they are written */
+	private static final int WRITE_DELAY = 5000;
+
+	private static final int MSG_OPEN   = 1;
+	private static final int MSG_LOOKUP = 2;
+	private static final int MSG_RESULT = 3;
+	private static final int MSG_WRITE  = 4;
+	private static final int MSG_QUIT   = 5;
+
+	private final Context mContext;
+	private final Listener mListener;
+	private final String[] mLanguages;
+	private final LearnedWords mLearned;
+
+	/** Typed word, main thread only */
+	private final char[] mWord = new char[WordSuggester.MAX_WORD];
+	private int mLength;
+	/** Increased by the main thread for every change of the word */
+	private volatile int mGeneration;
+
+	/** Request slot, guarded by mLock */
+	private final Object mLock = new Object();
+	private final char[] mPendingWord = new char[WordSuggester.MAX_WORD];
+	private int mPendingLength;
+	private int mPendingGeneration;
+	private long mPendingDeadline;
+	private boolean mHasPending;
+
+	/** Worker thread state */
+	private HandlerThread mThread;
+	private Handler mWorkerHandler;
+	private WordSuggester mSuggester;
+	/** Language dictionaries, null until opened */
+	private ArrayList<WordDictionary> mDictionaries;
+	private WordDictionary mLearnedSnapshot;
+	private final char[] mLookupWord = new char[WordSuggester.MAX_WORD];
+	private int mLookupGeneration;
+	private long mLookupDeadline;
+
+	/** Statistics, written by the worker thread */
+	private volatile int mLookups;
+	private volatile int mStale;
+	private volatile int mLate;
+
+	private final Handler mMainHandler = new Handler() {
+		@Override
+		public void handleMessage(Message msg) {
+			if (msg.what == MSG_RESULT && msg.arg1 == mGeneration) {
+				mListener.onSuggestions((CandidateList) msg.obj);
+			}
+		}
+	};
+
+	private final WordSuggester.Canceller mCanceller = new WordSuggester.Canceller() {
+		public boolean shouldStop() {
+			return mLookupGeneration != mGeneration
+					|| SystemClock.uptimeMillis() > mLookupDeadline;
+		}
+	};
+
+	/**
+	 * @param context for finding the dictionary files
+	 * @param listener gets the suggestions
+	 * @param languages dictionaries to use, see {@link WordSuggester#openDictionaries}
+	 */
+	public SuggestionWorker(Context context, Listener listener, String[] languages) {
+		mContext = context;
+		mListener = listener;
+		mLanguages = languages;
+		mLearned = new LearnedWords(context);
+	}
+
+	/**
+	 * Called when an editor with word suggestions starts. Starts the worker thread
+	 * and opens the dictionaries if that has not been done yet.
+	 */
+	public void start() {
+		reset();
+		if (mThread == null) {
+			mThread = new HandlerThread("SuggestionWorker",
+					Process.THREAD_PRIORITY_BACKGROUND);
+			mThread.start();
+			mWorkerHandler = new Handler(mThread.getLooper()) {
+				@Override
+				public void handleMessage(Message msg) {
+					switch (msg.what) {
+						case MSG_OPEN:
+							open();
+							break;
+						case MSG_LOOKUP:
+							lookup();
+							break;
+						case MSG_WRITE:
+							write();
+							break;
+						case MSG_QUIT:
+							mLearned.writeQueued();
+							getLooper().quit();
+							break;
+					}
+				}
+			};
+		}
+		mWorkerHandler.sendEmptyMessage(MSG_OPEN);
+	}
+
+	/**
+	 * Stops the worker thread once the learned words have been written.
+	 */
+	public void quit() {
+		reset();
+		if (mThread != null) {
+			// Not HandlerThread.quit(), it is API 5 and drops the queued write
+			mWorkerHandler.removeMessages(MSG_WRITE);
+			mWorkerHandler.sendEmptyMessage(MSG_QUIT);
+			mThread = null;
+			mWorkerHandler = null;
+		}
+	}
+
+	/**
+	 * Remembers a word the user has typed or picked, it is written to disk later on
+	 * the worker thread.
+	 */
+	public void learn(CharSequence word) {
+		if (mWorkerHandler != null && mLearned.add(word)) {
+			mWorkerHandler.sendEmptyMessageDelayed(MSG_WRITE, WRITE_DELAY);
+		}
+	}
+
+	/**
+	 * Writes the learned words now, for instance when the editor is closed.
+	 */
+	public void flush() {
+		if (mWorkerHandler != null) {
+			mWorkerHandler.removeMessages(MSG_WRITE);
+			mWorkerHandler.sendEmptyMessage(MSG_WRITE);
+		}
+	}
+
+	/**
+	 * Forgets the typed word, a lookup in progress is dropped.
+	 */
+	public void reset() {
+		mLength = 0;
+		mGeneration++;
+	}
+
+	/** Number of characters in the typed word */
+	public int getWordLength() {
+		return mLength;
+	}
+
+	/**
+	 * Called for each character typed.
+	 * @return whether the character is part of a word, if not the word has ended and
+	 * no suggestions will come
+	 */
+	public boolean onCharacter(int c) {
+		if (!WordSuggester.isWordChar(c)) {
+			if (mLength > 0 && mLength <= mWord.length) {
+				learn(new String(mWord, 0, mLength));
+			}
+			reset();
+			return false;
+		}
+		if (mLength < mWord.length) {
+			mWord[mLength] = (char) c;
+		}
+		mLength++;
+		request();
+		return true;
+	}
+
+	/**
+	 * Called when characters before the cursor have been deleted.
+	 * @return whether part of the word is left
+	 */
+	public boolean onDeleted(int count) {
+		if (count >= mLength) {
+			reset();
+			return false;
+		}
+		mLength -= count;
+		request();
+		return true;
+	}
+
+	private void request() {
+		mGeneration++;
+		if (mWorkerHandler == null || mLength > mWord.length) {
+			// Not started or too long for a word
+			return;
+		}
+		synchronized (mLock) {
+			System.arraycopy(mWord, 0, mPendingWord, 0, mLength);
+			mPendingLength = mLength;
+			mPendingGeneration = mGeneration;
+			mPendingDeadline = SystemClock.uptimeMillis() + DEADLINE;
+			if (mHasPending) {
+				// Replaces the request not started yet
+				return;
+			}
+			mHasPending = true;
+		}
+		mWorkerHandler.sendEmptyMessage(MSG_LOOKUP);
+	}
+
+	/** Runs on the worker thread */
+	private void open() {
+		if (mDictionaries == null) {
+			mDictionaries = WordSuggester.openDictionaries(mContext, mLanguages);
+			mLearnedSnapshot = mLearned.open();
+			createSuggester();
+		}
+	}
+
+	/** Runs on the worker thread */
+	private void write() {
+		mLearned.writeQueued();
+		if (mLearned.needsCompaction()) {
+			mLearnedSnapshot = mLearned.compact();
+			createSuggester();
+		}
+	}
+
+	private void createSuggester() {
+		final int n = mDictionaries.size();
+		final WordDictionary[] dictionaries =
+				new WordDictionary[n + (mLearnedSnapshot != null ? 1 : 0)];
+		mDictionaries.toArray(dictionaries);
+		if (mLearnedSnapshot != null) {
+			dictionaries[n] = mLearnedSnapshot;
+		}
+		mSuggester = dictionaries.length > 0 ? new WordSuggester(dictionaries) : null;
+	}
+
+	/** Runs on the worker thread */
+	private void lookup() {
+		int length;
+		synchronized (mLock) {
+			if (!mHasPending) {
+				return;
+			}
+			mHasPending = false;
+			length = mPendingLength;
+			System.arraycopy(mPendingWord, 0, mLookupWord, 0, length);
+			mLookupGeneration = mPendingGeneration;
+			mLookupDeadline = mPendingDeadline;
+		}
+		if (mSuggester == null || mLookupGeneration != mGeneration) {
+			mStale++;
+			return;
+		}
+		mLookups++;
+		mSuggester.setWord(mLookupWord, length);
+		final CandidateList suggestions = mSuggester.getSuggestions(mCanceller);
+		if (mLookupGeneration != mGeneration) {
+			mStale++;
+			return;
+		}
+		if (SystemClock.uptimeMillis() > mLookupDeadline) {
+			mLate++;
+		}
+		mMainHandler.obtainMessage(MSG_RESULT, mLookupGeneration, 0, suggestions)
+				.sendToTarget();
+	}
+
+	/** Number of lookups done */
+	public int getLookupCount() {
+		return mLookups;
+	}
+
+	/** Number of requests dropped because the word had changed */
+	public int getStaleCount() {
+		return mStale;
+	}
+
+	/** Number of lookups that ran past their deadline and delivered partial results */
+	public int getLateCount() {
+		return mLate;
+	}
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.text.TextUtils;
+import android.view.inputmethod.CompletionInfo;
+import android.view.inputmethod.ExtractedText;
+import android.view.inputmethod.ExtractedTextRequest;
+import android.view.inputmethod.InputConnection;
+
+/**
+ * Local copy of the last characters before the cursor in the editor, kept up to
+ * date from what the input method itself commits. Used to compute the cursor caps
+ * mode without a call to the editor for every keystroke.
+ *
+ * Every own edit moves the cursor by a known amount. Selection updates from the
+ * editor that match these moves confirm the copy, any other cursor movement or a
+ * selection means the text may have changed under us and the copy is dropped. It
+ * is then read again from the editor the next time it is needed.
+ *
+ * The same edits keep the larger window of the {@link CursorNavigator} up to date
+ * and are recorded in the {@link UndoRing}.
+ */
+public class TextContext implements CharSequence {
+
+	/** Number of characters kept before the cursor */
+	private static final int WINDOW = 64;
+	/** Maximum number of own edits not yet confirmed by the editor */
+	private static final int MAX_PENDING = 16;
+
+	private final char[] mText = new char[WINDOW];
+	private int mLength;
+	/** Whether mText holds valid text */
+	private boolean mValid;
+	/** Whether mText starts at the beginning of the document */
+	private boolean mAtStart;
+	/** Whether the editor has a selection */
+	private boolean mSelection;
+	/** Length of the composing text shown in the editor, not part of mText */
+	private int mComposingLength;
+
+	/** Cursor moves of own edits not yet reported by the editor, oldest first */
+	private final int[] mPending = new int[MAX_PENDING];
+	private int mPendingStart;
+	private int mPendingCount;
+
+	private final CursorNavigator mNavigator = new CursorNavigator();
+	private final UndoRing mUndo = new UndoRing();
+
+	/** Statistics */
+	private int mCapsQueries;
+	private int mEditorCalls;
+
+	/**
+	 * Forgets the local text, it is read from the editor when needed. Own edits
+	 * already sent are still expected in {@link #onUpdateSelection}, and the undo
+	 * ring is kept until an update shows that something else moved the cursor.
+	 */
+	public void invalidate() {
+		dropText();
+		mNavigator.invalidate();
+	}
+
+	/**
+	 * Forgets the local text and the own edits expected, for instance for a new
+	 * editor.
+	 */
+	public void reset() {
+		forget();
+		mComposingLength = 0;
+		mNavigator.invalidate();
+		mUndo.clear();
+	}
+
+	/**
+	 * Called after the {@link CursorNavigator} has moved the cursor.
+	 */
+	public void onCursorMoved() {
+		dropText();
+	}
+
+	public CursorNavigator getNavigator() {
+		return mNavigator;
+	}
+
+	public UndoRing getUndoRing() {
+		return mUndo;
+	}
+
+	private void dropText() {
+		mValid = false;
+		mLength = 0;
+	}
+
+	private void forget() {
+		dropText();
+		mPendingCount = 0;
+	}
+
+	/**
+	 * Called after text has been committed at the cursor, replacing any composing
+	 * text.
+	 */
+	public void onCommitted(CharSequence text) {
+		final int n = text.length();
+		if (mSelection) {
+			// Replaces the selection, the cursor move is not known
+			reset();
+			return;
+		}
+		mNavigator.onCommitted(text);
+		mUndo.onCommitted(text);
+		if (mValid) {
+			for (int i = 0; i < n; i++) {
+				append(text.charAt(i));
+			}
+		}
+		if (n != mComposingLength) {
+			expect(n - mComposingLength);
+		}
+		mComposingLength = 0;
+	}
+
+	/**
+	 * Called after composing text has been set, replacing any earlier composing
+	 * text. It is not an edit to undo, committing it is.
+	 */
+	public void onComposing(CharSequence text) {
+		final int n = text.length();
+		if (mSelection) {
+			reset();
+			return;
+		}
+		// The editor text before the cursor has the composing text, the local copy not
+		dropText();
+		mNavigator.invalidate();
+		if (n != mComposingLength) {
+			expect(n - mComposingLength);
+		}
+		mComposingLength = n;
+	}
+
+	/**
+	 * Commits a completion the editor offered and records it as an edit to undo.
+	 * The editor decides what the completion replaces, so the text is read before
+	 * and after to find out. Only as much text as the undo ring can hold is asked
+	 * for, an edit larger than that could not be undone anyway. Editors that return
+	 * a different window the second time are treated as an unknown edit.
+	 */
+	public void commitCompletion(InputConnection ic, CompletionInfo completion) {
+		final ExtractedTextRequest request = new ExtractedTextRequest();
+		request.hintMaxChars = UndoRing.MAX_CHARS;
+		final ExtractedText before = mSelection ? null : ic.getExtractedText(request, 0);
+		ic.commitCompletion(completion);
+		final ExtractedText after = before != null ? ic.getExtractedText(request, 0) : null;
+		dropText();
+		mNavigator.invalidate();
+		mComposingLength = 0;
+		if (after == null || after.text == null || before.text == null
+				|| after.startOffset != before.startOffset
+				|| before.selectionStart != before.selectionEnd
+				|| after.selectionStart != after.selectionEnd) {
+			// Where the cursor ends up is not known
+			reset();
+			return;
+		}
+		final CharSequence old = before.text;
+		final CharSequence text = after.text;
+		final int oldCursor = before.selectionStart;
+		final int cursor = after.selectionStart;
+		// The text after the cursor is kept, the replaced text ends where it starts
+		final int tail = text.length() - cursor;
+		final int end = old.length() - tail;
+		if (cursor < 0 || end < 0 || !regionMatches(old, end, text, cursor, tail)) {
+			reset();
+			return;
+		}
+		int start = 0;
+		while (start < end && start < cursor && old.charAt(start) == text.charAt(start))
+			start++;
+		if (end != oldCursor) {
+			// Not next to the earlier edits
+			mUndo.clear();
+		}
+		final char[] deleted = new char[end - start];
+		TextUtils.getChars(old, start, end, deleted, 0);
+		mUndo.onDeleted(deleted, deleted.length, deleted.length);
+		mUndo.onCommitted(text.subSequence(start, cursor));
+		mUndo.onEditDone();
+		if (cursor != oldCursor) {
+			expect(cursor - oldCursor);
+		}
+	}
+
+	private static boolean regionMatches(CharSequence a, int aStart, CharSequence b,
+			int bStart, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a.charAt(aStart + i) != b.charAt(bStart + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Called after characters before the cursor have been deleted.
+	 */
+	public void onDeleted(int count) {
+		if (mSelection) {
+			reset();
+			return;
+		}
+		mNavigator.onDeleted(count);
+		if (!mValid) {
+			mUndo.onDeleted(null, 0, count);
+			expect(-count);
+			return;
+		}
+		if (mAtStart && mLength < count) {
+			// Nothing to delete at start of text
+			count = mLength;
+		}
+		mUndo.onDeleted(mText, mLength, count);
+		mLength = Math.max(0, mLength - count);
+		if (count > 0) {
+			expect(-count);
+		}
+	}
+
+	/**
+	 * Called after a batch of own edits has been sent.
+	 */
+	public void onEditDone() {
+		mUndo.onEditDone();
+	}
+
+	private void append(char c) {
+		if (mLength == WINDOW) {
+			System.arraycopy(mText, 1, mText, 0, WINDOW - 1);
+			mLength--;
+			mAtStart = false;
+		}
+		mText[mLength++] = c;
+	}
+
+	private void expect(int move) {
+		if (mPendingCount == MAX_PENDING) {
+			forget();
+			return;
+		}
+		mPending[(mPendingStart + mPendingCount) % MAX_PENDING] = move;
+		mPendingCount++;
+	}
+
+	/**
+	 * Called from {@link android.inputmethodservice.InputMethodService#onUpdateSelection}.
+	 * @return whether the change was caused by own edits, false if the user or the
+	 * editor moved the cursor or changed the text
+	 */
+	public boolean onUpdateSelection(int oldSelStart, int oldSelEnd,
+			int newSelStart, int newSelEnd) {
+		final boolean ownEdit = isOwnEdit(oldSelStart, oldSelEnd, newSelStart, newSelEnd);
+		if (!ownEdit) {
+			forget();
+			mUndo.clear();
+		}
+		mNavigator.onUpdateSelection(newSelStart, newSelEnd, ownEdit);
+		return ownEdit;
+	}
+
+	private boolean isOwnEdit(int oldSelStart, int oldSelEnd,
+			int newSelStart, int newSelEnd) {
+		mSelection = newSelStart != newSelEnd;
+		if (mSelection) {
+			return false;
+		}
+		final int move = newSelStart - oldSelEnd;
+		if (move == 0 && oldSelStart == oldSelEnd) {
+			return true;
+		}
+		// The editor may report several own edits in one update
+		int sum = 0;
+		for (int i = 0; i < mPendingCount; i++) {
+			sum += mPending[(mPendingStart + i) % MAX_PENDING];
+			if (sum == move) {
+				mPendingStart = (mPendingStart + i + 1) % MAX_PENDING;
+				mPendingCount -= i + 1;
+				return true;
+			}
+		}
+		// Not caused by us
+		return false;
+	}
+
+	/**
+	 * Returns the caps mode at the cursor, like
+	 * {@link InputConnection#getCursorCapsMode}, calling the editor only if the local
+	 * text is not known or not enough to decide.
+	 */
+	public int getCursorCapsMode(InputConnection ic, int reqModes) {
+		mCapsQueries++;
+		if (!mValid || !isDecidable()) {
+			mEditorCalls++;
+			if (!read(ic)) {
+				return ic.getCursorCapsMode(reqModes);
+			}
+			if (!isDecidable()) {
+				mEditorCalls++;
+				return ic.getCursorCapsMode(reqModes);
+			}
+		}
+		return TextUtils.getCapsMode(this, mLength, reqModes);
+	}
+
+	private boolean read(InputConnection ic) {
+		CharSequence before = ic.getTextBeforeCursor(WINDOW, 0);
+		if (before == null) {
+			dropText();
+			return false;
+		}
+		mLength = Math.min(before.length(), WINDOW);
+		TextUtils.getChars(before, before.length() - mLength, before.length(), mText, 0);
+		mAtStart = before.length() < WINDOW;
+		mValid = true;
+		return true;
+	}
+
+	/**
+	 * Returns whether the cursor is at the start of a word: at the start of the
+	 * document or after a character that is not a letter or digit. Reads the text
+	 * from the editor if it is not known.
+	 * @return false if the text is not known or there is a selection
+	 */
+	public boolean isAtWordStart(InputConnection ic) {
+		if (mSelection || (!mValid && !read(ic))) {
+			return false;
+		}
+		return mLength == 0 ? mAtStart : !Character.isLetterOrDigit(mText[mLength - 1]);
+	}
+
+	/**
+	 * Returns how many characters to delete to remove words before the cursor, with
+	 * the spaces after them. A run of other characters counts as a word. Stops at the
+	 * start of the local text, the rest goes with the next call.
+	 * @return number of characters, or -1 if the text is not known
+	 */
+	public int getWordDeleteLength(InputConnection ic, int words) {
+		if (!mValid && !read(ic)) {
+			return -1;
+		}
+		int i = mLength;
+		for (int w = 0; w < words && i > 0; w++) {
+			while (i > 0 && Character.isWhitespace(mText[i - 1]))
+				i--;
+			if (i > 0 && Character.isLetterOrDigit(mText[i - 1])) {
+				while (i > 0 && Character.isLetterOrDigit(mText[i - 1]))
+					i--;
+			} else {
+				while (i > 0 && !Character.isLetterOrDigit(mText[i - 1])
+						&& !Character.isWhitespace(mText[i - 1]))
+					i--;
+			}
+		}
+		return mLength - i;
+	}
+
+	/**
+	 * Returns how many characters to delete to remove sentences before the cursor,
+	 * back to just after the end of the sentence before them or a line break. Stops
+	 * at the start of the local text, the rest goes with the next call.
+	 * @return number of characters, or -1 if the text is not known
+	 */
+	public int getSentenceDeleteLength(InputConnection ic, int sentences) {
+		if (!mValid && !read(ic)) {
+			return -1;
+		}
+		int i = mLength;
+		for (int s = 0; s < sentences && i > 0; s++) {
+			while (i > 0 && Character.isWhitespace(mText[i - 1]))
+				i--;
+			while (i > 0 && isSentenceEnd(mText[i - 1]))
+				i--;
+			while (i > 0 && !isSentenceEnd(mText[i - 1]) && mText[i - 1] != '\n')
+				i--;
+		}
+		return mLength - i;
+	}
+
+	private static boolean isSentenceEnd(char c) {
+		return c == '.' || c == '?' || c == '!';
+	}
+
+	/**
+	 * Returns whether the local text is long enough for TextUtils.getCapsMode() to give
+	 * the same answer as on the full text, i.e. it never looks past the start of the
+	 * window unless the window starts at the beginning of the document.
+	 */
+	private boolean isDecidable() {
+		if (mAtStart) {
+			return true;
+		}
+		int i = mLength;
+		// Opening punctuation and spaces
+		while (i > 0 && isQuoteOrSpace(mText[i - 1], Character.START_PUNCTUATION))
+			i--;
+		// Closing punctuation
+		while (i > 0 && isQuoteOrSpace(mText[i - 1], Character.END_PUNCTUATION))
+			i--;
+		// Sentence end and the word before it, which is checked for abbreviations
+		while (i > 0 && (mText[i - 1] == '.' || mText[i - 1] == '?' || mText[i - 1] == '!'))
+			i--;
+		while (i > 0 && Character.isLetter(mText[i - 1]))
+			i--;
+		return i > 0;
+	}
+
+	private static boolean isQuoteOrSpace(char c, int punctuationType) {
+		return c == '"' || c == '\'' || c == ' ' || c == '\t'
+				|| Character.getType(c) == punctuationType;
+	}
+
+	/** Number of caps mode queries */
+	public int getCapsQueryCount() {
+		return mCapsQueries;
+	}
+
+	/** Number of those queries that needed calls to the editor */
+	public int getEditorCallCount() {
+		return mEditorCalls;
+	}
+
+	// CharSequence over the local text, for TextUtils
+
+	public char charAt(int index) {
+		return mText[index];
+	}
+
+	public int length() {
+		return mLength;
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return new String(mText, start, end - start);
+	}
+
+	@Override
+	public String toString() {
+		return new String(mText, 0, mLength);
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.inputmethodservice.Keyboard;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.MotionEvent;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+import org.tlundqvist.littlebigkeyboard.LatinKeyboard.LatinKey;
+
+/**
+ * Replays touch traces through a {@link ModKeyboardView} and checks the codes they
+ * produce and that handling them allocates nothing. Every key is tapped, slid slowly
+ * past each edge and flicked past each edge and back. A flick arrives as a single
+ * move event with the samples batched in its history, the way a fast finger is
+ * reported, and must send the side letter even though the last sample is back on
+ * the key. The traces are built from the key geometry, so they cover every layout.
+ *
+ * Used when {@link ModKeyboardView#DEBUG_REPLAY} or
+ * {@link ModKeyboardView#DEBUG_ALLOCATIONS} is on, once per keyboard after it is
+ * first shown. The traces are replayed twice: the first pass renders the key images
+ * and fills the message pool, the second pass is measured. Codes go to this class
+ * instead of the editor, so the editor side of a keystroke is only covered by the
+ * counting the view does while typing. A wrong code or an event that allocates
+ * throws, the totals are printed by "adb shell dumpsys input_method".
+ */
+class TouchReplay implements ModKeyboardView.OnKeyboardActionListener, Runnable {
+
+	private static final String TAG = "TouchReplay";
+
+	/** Press to release of a tap, and pause before the release of other traces */
+	private static final int TAP_TIME = 60;
+	/** Slow slide: samples and duration, too slow to be a flick */
+	private static final int SLIDE_STEPS = 8;
+	private static final int SLIDE_TIME = 400;
+	/** Flick: samples out past the edge, samples back to the center, ms per sample */
+	private static final int FLICK_OUT_STEPS = 3;
+	private static final int FLICK_BACK_STEPS = 2;
+	private static final int FLICK_STEP_TIME = 8;
+	/** Events in the longest trace, the slide */
+	private static final int MAX_EVENTS = SLIDE_STEPS + 2;
+	/** Codes kept per trace, every trace expects one at most */
+	private static final int MAX_CODES = 4;
+	/** Expected code of a trace that sends nothing */
+	private static final int NO_CODE = LatinKeyboard.KEYCODE_NOTUSED;
+
+	private final ModKeyboardView mView;
+	/** Keyboards already replayed */
+	private final ArrayList<LatinKeyboard> mReplayed = new ArrayList<LatinKeyboard>();
+	/** Keyboard to replay when run, null if none */
+	private LatinKeyboard mPending;
+
+	/** Events of the trace being built */
+	private final MotionEvent[] mEvents = new MotionEvent[MAX_EVENTS];
+	private int mEventCount;
+	private long mDownTime;
+	private long mTime;
+	/** Codes sent by the trace being replayed */
+	private final int[] mCodes = new int[MAX_CODES];
+	private int mCodeCount;
+
+	private int mTraceCount;
+	private int mTracesWrong;
+	private int mEventsMeasured;
+	private int mEventsAllocating;
+
+	TouchReplay(ModKeyboardView view) {
+		mView = view;
+	}
+
+	/**
+	 * Replays the traces on a keyboard soon, after it has been drawn, unless that
+	 * keyboard has been replayed before.
+	 */
+	void schedule(LatinKeyboard keyboard) {
+		if (!mReplayed.contains(keyboard)) {
+			mPending = keyboard;
+			mView.removeCallbacks(this);
+			mView.post(this);
+		}
+	}
+
+	public void run() {
+		final LatinKeyboard keyboard = mPending;
+		mPending = null;
+		if (keyboard == null || keyboard != mView.getKeyboard()) {
+			return;
+		}
+		mReplayed.add(keyboard);
+		final ModKeyboardView.OnKeyboardActionListener listener =
+			mView.getOnKeyboardActionListener();
+		final LatencyTracer tracer = mView.getLatencyTracer();
+		mView.setOnKeyboardActionListener(this);
+		mView.setLatencyTracer(null);
+		final int allocating = mEventsAllocating;
+		final int wrong = mTracesWrong;
+		try {
+			Debug.startAllocCounting();
+			replayKeys(keyboard.getKeyArray(), false);
+			replayKeys(keyboard.getKeyArray(), true);
+		} finally {
+			mView.setOnKeyboardActionListener(listener);
+			mView.setLatencyTracer(tracer);
+		}
+		if (mTracesWrong > wrong || mEventsAllocating > allocating) {
+			throw new IllegalStateException((mTracesWrong - wrong)
+					+ " replayed touch traces sent wrong codes and "
+					+ (mEventsAllocating - allocating) + " events allocated, see the log");
+		}
+		Log.i(TAG, "Replayed " + keyboard.getKeyArray().length + " keys");
+	}
+
+	private void replayKeys(LatinKey[] keys, boolean measure) {
+		final int left = mView.getPaddingLeft();
+		final int top = mView.getPaddingTop() - ModKeyboardView.VERTICAL_CORRECTION;
+		for (int i = 0; i < keys.length; i++) {
+			final LatinKey key = keys[i];
+			final int x = left + key.x + key.width / 2;
+			final int y = top + key.y + key.height / 2;
+
+			startTrace(x, y);
+			mTime += TAP_TIME;
+			addEvent(MotionEvent.ACTION_UP, x, y);
+			replayTrace(measure, "tap", key, key.codes[0]);
+
+			for (int side = 1; side <= 4; side++) {
+				// From the center to half a key past the edge
+				final int size = side == 1 || side == 3 ? key.width : key.height;
+				final int dx = side == 1 ? -size : side == 3 ? size : 0;
+				final int dy = side == 2 ? -size : side == 4 ? size : 0;
+
+				startTrace(x, y);
+				for (int step = 1; step <= SLIDE_STEPS; step++) {
+					mTime = mDownTime + SLIDE_TIME * step / SLIDE_STEPS;
+					addEvent(MotionEvent.ACTION_MOVE,
+							x + dx * step / SLIDE_STEPS, y + dy * step / SLIDE_STEPS);
+				}
+				mTime += TAP_TIME;
+				addEvent(MotionEvent.ACTION_UP, x + dx, y + dy);
+				// Released past the edge: the side letter, nothing on keys without
+				// side letters
+				final int sideCode = getSideCode(key, side);
+				replayTrace(measure, "slide", key, sideCode);
+
+				startTrace(x, y);
+				for (int step = 1; step <= FLICK_OUT_STEPS; step++) {
+					mTime += FLICK_STEP_TIME;
+					final int px = x + dx * step / FLICK_OUT_STEPS;
+					final int py = y + dy * step / FLICK_OUT_STEPS;
+					if (step == 1) {
+						addEvent(MotionEvent.ACTION_MOVE, px, py);
+					} else {
+						addBatch(px, py);
+					}
+				}
+				for (int step = FLICK_BACK_STEPS - 1; step >= 0; step--) {
+					mTime += FLICK_STEP_TIME;
+					addBatch(x + dx * step / FLICK_BACK_STEPS, y + dy * step / FLICK_BACK_STEPS);
+				}
+				mTime += TAP_TIME;
+				addEvent(MotionEvent.ACTION_UP, x, y);
+				// Released on the key: the side letter still, it was sent on the way
+				// out. Keys without side letters see a tap.
+				replayTrace(measure, "flick", key,
+						key.codes.length == 5 ? sideCode : key.codes[0]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the code a key sends when released past one of its edges, worked out
+	 * from the key itself rather than the view's lookup.
+	 */
+	private static int getSideCode(LatinKey key, int side) {
+		final int edge = side == 1 ? Keyboard.EDGE_LEFT : side == 2 ? Keyboard.EDGE_TOP
+				: side == 3 ? Keyboard.EDGE_RIGHT : Keyboard.EDGE_BOTTOM;
+		if (key.repeatable || (key.edgeFlags & edge) != 0) {
+			// Sent on press, or the key reaches past the edge of the keyboard
+			return key.codes[0];
+		}
+		return key.codes.length == 5 ? key.codes[side] : NO_CODE;
+	}
+
+	private void startTrace(int x, int y) {
+		mDownTime = SystemClock.uptimeMillis();
+		mTime = mDownTime;
+		addEvent(MotionEvent.ACTION_DOWN, x, y);
+	}
+
+	private void addEvent(int action, int x, int y) {
+		mEvents[mEventCount++] = MotionEvent.obtain(mDownTime, mTime, action, x, y, 0);
+	}
+
+	/** Adds a sample to the last event, moving the previous one into its history */
+	private void addBatch(int x, int y) {
+		mEvents[mEventCount - 1].addBatch(mTime, x, y, 1.0f, 1.0f, 0);
+	}
+
+	private void replayTrace(boolean measure, String name, LatinKey key, int expected) {
+		mCodeCount = 0;
+		for (int i = 0; i < mEventCount; i++) {
+			if (measure) {
+				Debug.resetThreadAllocCount();
+			}
+			mView.onTouchEvent(mEvents[i]);
+			if (measure) {
+				final int count = Debug.getThreadAllocCount();
+				mEventsMeasured++;
+				if (count > 0) {
+					mEventsAllocating++;
+					Log.w(TAG, count + " allocations in event " + i + " of " + name
+							+ " on key " + key.codes[0]);
+				}
+			}
+		}
+		for (int i = 0; i < mEventCount; i++) {
+			mEvents[i].recycle();
+			mEvents[i] = null;
+		}
+		mEventCount = 0;
+		if (measure) {
+			mTraceCount++;
+			final boolean right = expected == NO_CODE ? mCodeCount == 0
+					: mCodeCount == 1 && mCodes[0] == expected;
+			if (!right) {
+				mTracesWrong++;
+				Log.w(TAG, name + " on key " + key.codes[0] + " sent " + mCodeCount
+						+ " codes, first " + (mCodeCount > 0 ? mCodes[0] : NO_CODE)
+						+ ", expected " + expected);
+			}
+		}
+	}
+
+	public void dump(PrintWriter pw, String prefix) {
+		pw.println(prefix + "touch replay: keyboards=" + mReplayed.size()
+				+ " traces=" + mTraceCount + " wrong=" + mTracesWrong
+				+ " events=" + mEventsMeasured
+				+ " allocating=" + mEventsAllocating);
+	}
+
+	public void onPress(int primaryCode) {
+	}
+
+	public void onRelease(int primaryCode) {
+	}
+
+	public void onKey(int primaryCode) {
+		if (mCodeCount < MAX_CODES) {
+			mCodes[mCodeCount] = primaryCode;
+		}
+		mCodeCount++;
+	}
+
+	public void onRepeat(int primaryCode, int count) {
+		// Repeats are timed by the main loop, which does not run during a replay
+		onKey(primaryCode);
+	}
+
+	public void onText(CharSequence text) {
+	}
+}
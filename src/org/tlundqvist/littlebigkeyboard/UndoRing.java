@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+/**
+ * Recent edits at the cursor, for undo and redo. An edit is one batch sent by the
+ * {@link OutputBatcher}, or one commit sent around it such as a composed character
+ * or an editor completion: characters deleted before the cursor, then text committed.
+ * Edits are kept in fixed arrays and their text in a ring of characters, so
+ * recording costs no allocation.
+ *
+ * The edits are only valid as long as they are next to each other at the cursor.
+ * {@link TextContext} clears the ring when anything else changes the text or moves
+ * the cursor.
+ */
+public class UndoRing {
+
+	/** Most edits kept */
+	private static final int MAX_EDITS = 64;
+	/** Most characters kept, deleted and inserted, older edits are dropped */
+	static final int MAX_CHARS = 2048;
+
+	/** Per edit: characters deleted, -1 if their text is not known */
+	private final int[] mDeleted = new int[MAX_EDITS];
+	private final int[] mInserted = new int[MAX_EDITS];
+	/** Per edit: position in mChars of the deleted text, followed by the inserted */
+	private final int[] mTextStart = new int[MAX_EDITS];
+	private final char[] mChars = new char[MAX_CHARS];
+
+	/** Index of the oldest edit */
+	private int mFirst;
+	/** Number of edits that can be undone, from mFirst */
+	private int mCount;
+	/** Number of undone edits after those that can be redone */
+	private int mRedoCount;
+	/** Position in mChars after the text of the last edit, counting up without wrapping */
+	private int mCharsEnd;
+
+	/** The edit being recorded */
+	private boolean mRecording;
+	private int mCurrentDeleted;
+	private int mCurrentInserted;
+	/** Whether the edit being recorded comes from {@link #undo} or {@link #redo} */
+	private boolean mReplaying;
+
+	/** Statistics */
+	private int mUndone;
+
+	/**
+	 * Forgets all edits.
+	 */
+	public void clear() {
+		mCount = 0;
+		mRedoCount = 0;
+		mRecording = false;
+	}
+
+	/**
+	 * Called when characters before the cursor have been deleted.
+	 * @param text the local text before the deletion, or null if not known
+	 * @param end end of the text before the cursor in text
+	 */
+	void onDeleted(char[] text, int end, int count) {
+		if (mReplaying) {
+			return;
+		}
+		if (mRecording && mCurrentInserted > 0) {
+			// Deleting after inserting, that is another edit
+			onEditDone();
+		}
+		startEdit();
+		if (mCurrentDeleted < 0) {
+			return;
+		}
+		if (text == null || count > end || mCurrentDeleted + count > MAX_CHARS / 2) {
+			mCurrentDeleted = -1;
+			return;
+		}
+		// Earlier deletes of the same edit come later in the text
+		final int start = mCharsEnd;
+		for (int i = mCurrentDeleted - 1; i >= 0; i--) {
+			mChars[(start + count + i) % MAX_CHARS] = mChars[(start + i) % MAX_CHARS];
+		}
+		for (int i = 0; i < count; i++) {
+			mChars[(start + i) % MAX_CHARS] = text[end - count + i];
+		}
+		mCurrentDeleted += count;
+	}
+
+	/**
+	 * Called when text has been committed at the cursor.
+	 */
+	void onCommitted(CharSequence text) {
+		if (mReplaying) {
+			return;
+		}
+		startEdit();
+		final int n = text.length();
+		if (Math.max(mCurrentDeleted, 0) + mCurrentInserted + n > MAX_CHARS / 2) {
+			// Too long to keep
+			clear();
+			return;
+		}
+		final int start = mCharsEnd + Math.max(mCurrentDeleted, 0) + mCurrentInserted;
+		for (int i = 0; i < n; i++) {
+			mChars[(start + i) % MAX_CHARS] = text.charAt(i);
+		}
+		mCurrentInserted += n;
+	}
+
+	private void startEdit() {
+		if (mRecording) {
+			return;
+		}
+		mRecording = true;
+		mCurrentDeleted = 0;
+		mCurrentInserted = 0;
+		// A new edit, the undone ones can no longer be redone
+		mRedoCount = 0;
+		mCharsEnd = mCount > 0 ? getTextEnd(mFirst + mCount - 1) : 0;
+	}
+
+	/**
+	 * Called when a batch of edits has been sent, it is one edit to undo.
+	 */
+	void onEditDone() {
+		if (!mRecording) {
+			return;
+		}
+		mRecording = false;
+		final int length = Math.max(mCurrentDeleted, 0) + mCurrentInserted;
+		if (length == 0) {
+			return;
+		}
+		// Make room
+		if (mCount == MAX_EDITS) {
+			dropOldest();
+		}
+		while (mCount > 0 && mCharsEnd + length - mTextStart[mFirst] > MAX_CHARS) {
+			dropOldest();
+		}
+		final int edit = (mFirst + mCount) % MAX_EDITS;
+		mDeleted[edit] = mCurrentDeleted;
+		mInserted[edit] = mCurrentInserted;
+		mTextStart[edit] = mCharsEnd;
+		mCount++;
+		mCharsEnd += length;
+	}
+
+	private void dropOldest() {
+		mFirst = (mFirst + 1) % MAX_EDITS;
+		mCount--;
+	}
+
+	private int getTextEnd(int index) {
+		final int edit = index % MAX_EDITS;
+		return mTextStart[edit] + Math.max(mDeleted[edit], 0) + mInserted[edit];
+	}
+
+	/** Number of edits that can be undone */
+	public int getUndoCount() {
+		return mCount;
+	}
+
+	/**
+	 * Reverts the last edits, as one batch edit.
+	 * @param count most edits to revert
+	 * @param output where to queue the reverting edit, it is flushed
+	 * @return number of edits reverted, fewer if the deleted text of one is not known
+	 */
+	public int undo(int count, OutputBatcher output) {
+		output.flush();
+		int n = 0;
+		while (n < count && mCount > 0) {
+			final int edit = (mFirst + mCount - 1) % MAX_EDITS;
+			if (mDeleted[edit] < 0) {
+				break;
+			}
+			output.queueDelete(mInserted[edit], false);
+			queueText(output, mTextStart[edit], mDeleted[edit]);
+			mCount--;
+			mRedoCount++;
+			n++;
+		}
+		replay(output);
+		mUndone += n;
+		return n;
+	}
+
+	/**
+	 * Applies undone edits again, as one batch edit.
+	 * @param count most edits to apply
+	 * @param output where to queue the edits, it is flushed
+	 * @return number of edits applied
+	 */
+	public int redo(int count, OutputBatcher output) {
+		output.flush();
+		int n = 0;
+		while (n < count && mRedoCount > 0) {
+			final int edit = (mFirst + mCount) % MAX_EDITS;
+			output.queueDelete(mDeleted[edit], false);
+			queueText(output, mTextStart[edit] + mDeleted[edit], mInserted[edit]);
+			mCount++;
+			mRedoCount--;
+			n++;
+		}
+		replay(output);
+		return n;
+	}
+
+	private void queueText(OutputBatcher output, int start, int length) {
+		for (int i = 0; i < length; i++) {
+			output.queueCharacter(mChars[(start + i) % MAX_CHARS]);
+		}
+	}
+
+	private void replay(OutputBatcher output) {
+		final int redo = mRedoCount;
+		mReplaying = true;
+		try {
+			output.flush();
+		} finally {
+			mReplaying = false;
+		}
+		mRecording = false;
+		mRedoCount = redo;
+	}
+
+	/** Number of edits undone so far */
+	public int getUndoneCount() {
+		return mUndone;
+	}
+}
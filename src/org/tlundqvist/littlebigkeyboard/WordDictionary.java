@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only word list in a memory mapped file. The file is a trie with shared
+ * suffixes (a DAWG) and is used where it lies: nothing is copied to the Java heap,
+ * the pages read are shared page cache that the system can drop at any time.
+ *
+ * A lookup walks one node per typed character. The children of a node are sorted
+ * so that each step is a binary search.
+ *
+ * File format, big endian:
+ * <pre>
+ * int   DictionaryWriter.MAGIC
+ * short DictionaryWriter.FORMAT_VERSION
+ * short 0
+ * int   offset of the root node
+ * nodes, each:
+ *   short number of children
+ *   per child, sorted by character:
+ *     char  character, lower case
+ *     byte  frequency 1-255 if a word ends here, 0 if not
+ *     byte  highest word frequency at or below this child
+ *     int   offset of the child's node, 0 if it has no children
+ * </pre>
+ * Files are written by {@link DictionaryWriter}, from word lists by
+ * tools/MakeDictionary.java.
+ */
+public class WordDictionary {
+
+	private static final String TAG = "WordDictionary";
+
+	private static final int ENTRY_SIZE = 8;
+
+	private final ByteBuffer mBuf;
+	private final int mRoot;
+
+	private WordDictionary(ByteBuffer buf, int root) {
+		mBuf = buf;
+		mRoot = root;
+	}
+
+	/**
+	 * Maps a dictionary file.
+	 * @return the dictionary or null if the file is missing or not a dictionary
+	 */
+	public static WordDictionary open(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				final FileChannel channel = in.getChannel();
+				// The mapping stays valid after the file is closed
+				final ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+				if (buf.limit() < DictionaryWriter.HEADER_SIZE
+						|| buf.getInt(0) != DictionaryWriter.MAGIC
+						|| buf.getShort(4) != DictionaryWriter.FORMAT_VERSION) {
+					Log.w(TAG, "Not a dictionary: " + file);
+					return null;
+				}
+				final int root = buf.getInt(8);
+				if (root < DictionaryWriter.HEADER_SIZE || root >= buf.limit()) {
+					Log.w(TAG, "Broken dictionary: " + file);
+					return null;
+				}
+				return new WordDictionary(buf, root);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not map " + file, e);
+			return null;
+		}
+	}
+
+	/** Node of the empty word */
+	public int getRoot() {
+		return mRoot;
+	}
+
+	/** Number of children of a node, 0 for node 0 */
+	public int getChildCount(int node) {
+		return node == 0 ? 0 : mBuf.getShort(node) & 0xffff;
+	}
+
+	/** Child entry at an index, see {@link #getChildCount} */
+	public int getEntry(int node, int index) {
+		return node + 2 + index * ENTRY_SIZE;
+	}
+
+	/**
+	 * Returns the child entry of a node for a character, or -1 if no word continues
+	 * with it.
+	 * @param c lower case character
+	 */
+	public int findEntry(int node, char c) {
+		int low = 0;
+		int high = getChildCount(node) - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final char midChar = mBuf.getChar(node + 2 + mid * ENTRY_SIZE);
+			if (midChar < c) {
+				low = mid + 1;
+			} else if (midChar > c) {
+				high = mid - 1;
+			} else {
+				return node + 2 + mid * ENTRY_SIZE;
+			}
+		}
+		return -1;
+	}
+
+	public char getChar(int entry) {
+		return mBuf.getChar(entry);
+	}
+
+	/** Frequency of the word ending at an entry, 0 if no word ends there */
+	public int getWordFrequency(int entry) {
+		return mBuf.get(entry + 2) & 0xff;
+	}
+
+	/** Highest frequency of the words ending at or below an entry */
+	public int getMaxFrequency(int entry) {
+		return mBuf.get(entry + 3) & 0xff;
+	}
+
+	/** Node with the children of an entry, 0 if there are none */
+	public int getChildNode(int entry) {
+		return mBuf.getInt(entry + 4);
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.tlundqvist.littlebigkeyboard;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Suggests completions of the word being typed from one or more
+ * {@link WordDictionary}s. The position in each dictionary is kept between
+ * keystrokes, so a typed character costs one binary search per dictionary.
+ *
+ * Completions are found by a depth first walk below the typed word that skips
+ * branches which can not beat the suggestions found so far. The walk stops after a
+ * fixed number of entries so that a lookup always fits in a frame, even right
+ * after the first letter of a large dictionary.
+ *
+ * Not thread safe, used from the {@link SuggestionWorker} thread.
+ */
+public class WordSuggester {
+
+	/**
+	 * Asked regularly during a lookup, which stops with the suggestions found so far
+	 * when it returns true.
+	 */
+	public interface Canceller {
+		boolean shouldStop();
+	}
+
+	private static final String TAG = "WordSuggester";
+
+	public static final int MAX_SUGGESTIONS = 8;
+	/** Longer words get no suggestions */
+	static final int MAX_WORD = 48;
+	/** Dictionary entries looked at per lookup */
+	private static final int VISIT_BUDGET = 3000;
+
+	private final WordDictionary[] mDictionaries;
+	/** Per dictionary, the node after the typed word, 0 if the word is not in it */
+	private final int[] mNodes;
+	/** Per dictionary, the entry of the last typed character, -1 if none */
+	private final int[] mEntries;
+
+	/** Typed word, followed by the completion being looked at */
+	private final char[] mWord = new char[MAX_WORD];
+	private int mLength;
+
+	/** Best completions so far, highest frequency first */
+	private final char[][] mResults = new char[MAX_SUGGESTIONS][MAX_WORD];
+	private final int[] mResultLength = new int[MAX_SUGGESTIONS];
+	private final int[] mResultFrequency = new int[MAX_SUGGESTIONS];
+	private int mResultCount;
+	private int mBudget;
+	private Canceller mCanceller;
+
+	public WordSuggester(WordDictionary[] dictionaries) {
+		mDictionaries = dictionaries;
+		mNodes = new int[dictionaries.length];
+		mEntries = new int[dictionaries.length];
+		reset();
+	}
+
+	/**
+	 * Opens the dictionaries for some languages, files named dict_&lt;language&gt;.bin
+	 * in the files directory.
+	 * @return the dictionaries found
+	 */
+	public static ArrayList<WordDictionary> openDictionaries(Context context,
+			String[] languages) {
+		final ArrayList<WordDictionary> found = new ArrayList<WordDictionary>();
+		for (int i = 0; i < languages.length; i++) {
+			final File file = new File(context.getFilesDir(), "dict_" + languages[i] + ".bin");
+			final WordDictionary dictionary = WordDictionary.open(file);
+			if (dictionary != null) {
+				found.add(dictionary);
+			}
+		}
+		if (found.isEmpty()) {
+			Log.i(TAG, "No dictionaries in " + context.getFilesDir());
+		}
+		return found;
+	}
+
+	/**
+	 * Forgets the typed word.
+	 */
+	public void reset() {
+		mLength = 0;
+		for (int d = 0; d < mDictionaries.length; d++) {
+			mNodes[d] = mDictionaries[d].getRoot();
+			mEntries[d] = -1;
+		}
+	}
+
+	/** Number of characters in the typed word */
+	public int getWordLength() {
+		return mLength;
+	}
+
+	/**
+	 * Called for each character typed.
+	 * @return whether the character is part of a word, if not the word has ended
+	 */
+	public boolean onCharacter(int c) {
+		if (!isWordChar(c)) {
+			reset();
+			return false;
+		}
+		if (mLength == MAX_WORD) {
+			// Too long for a word, stays without suggestions until the next one
+			for (int d = 0; d < mDictionaries.length; d++) {
+				mNodes[d] = 0;
+				mEntries[d] = -1;
+			}
+			return true;
+		}
+		mWord[mLength++] = (char) c;
+		final char lower = Character.toLowerCase((char) c);
+		for (int d = 0; d < mDictionaries.length; d++) {
+			advance(d, lower);
+		}
+		return true;
+	}
+
+	/**
+	 * Called when characters before the cursor have been deleted.
+	 * @return whether part of the word is left
+	 */
+	public boolean onDeleted(int count) {
+		if (count >= mLength) {
+			reset();
+			return false;
+		}
+		final int length = mLength - count;
+		reset();
+		// Walk again from the start, cheaper than keeping the path
+		for (int i = 0; i < length; i++) {
+			onCharacter(mWord[i]);
+		}
+		return true;
+	}
+
+	/**
+	 * Changes the typed word, walking only the characters that differ from the word
+	 * so far.
+	 */
+	public void setWord(char[] word, int length) {
+		int common = 0;
+		while (common < mLength && common < length && mWord[common] == word[common]) {
+			common++;
+		}
+		if (common < mLength) {
+			onDeleted(mLength - common);
+		}
+		for (int i = common; i < length; i++) {
+			onCharacter(word[i]);
+		}
+	}
+
+	private void advance(int d, char c) {
+		final WordDictionary dictionary = mDictionaries[d];
+		final int entry = mNodes[d] != 0 ? dictionary.findEntry(mNodes[d], c) : -1;
+		mEntries[d] = entry;
+		mNodes[d] = entry >= 0 ? dictionary.getChildNode(entry) : 0;
+	}
+
+	/** Whether a character can be part of a word */
+	public static boolean isWordChar(int c) {
+		return Character.isLetter(c) || c == '\'';
+	}
+
+	/**
+	 * Returns the best words starting with the typed word, the typed word itself
+	 * included if it is in a dictionary. The typed characters keep their case.
+	 * @param canceller stops the lookup early, or null
+	 */
+	public CandidateList getSuggestions(Canceller canceller) {
+		mCanceller = canceller;
+		mResultCount = 0;
+		if (mLength == 0) {
+			return CandidateList.EMPTY;
+		}
+		for (int d = 0; d < mDictionaries.length; d++) {
+			final WordDictionary dictionary = mDictionaries[d];
+			mBudget = VISIT_BUDGET;
+			try {
+				if (mEntries[d] >= 0) {
+					final int frequency = dictionary.getWordFrequency(mEntries[d]);
+					if (frequency > 0) {
+						offer(mLength, frequency);
+					}
+				}
+				collect(dictionary, mNodes[d], mLength);
+			} catch (IndexOutOfBoundsException e) {
+				// Broken file, the suggestions found so far are still fine
+				Log.w(TAG, "Broken dictionary", e);
+			}
+		}
+		final CharSequence[] words = new CharSequence[mResultCount];
+		for (int i = 0; i < mResultCount; i++) {
+			words[i] = new String(mResults[i], 0, mResultLength[i]);
+		}
+		return CandidateList.fromWords(words);
+	}
+
+	private void collect(WordDictionary dictionary, int node, int length) {
+		if (length == MAX_WORD) {
+			return;
+		}
+		final int count = dictionary.getChildCount(node);
+		for (int i = 0; i < count; i++) {
+			if (--mBudget < 0) {
+				return;
+			}
+			if ((mBudget & 63) == 0 && mCanceller != null && mCanceller.shouldStop()) {
+				mBudget = 0;
+				return;
+			}
+			final int entry = dictionary.getEntry(node, i);
+			if (mResultCount == MAX_SUGGESTIONS
+					&& dictionary.getMaxFrequency(entry) <= mResultFrequency[MAX_SUGGESTIONS - 1]) {
+				// Nothing below beats the suggestions we have
+				continue;
+			}
+			mWord[length] = dictionary.getChar(entry);
+			final int frequency = dictionary.getWordFrequency(entry);
+			if (frequency > 0) {
+				offer(length + 1, frequency);
+			}
+			final int child = dictionary.getChildNode(entry);
+			if (child != 0) {
+				collect(dictionary, child, length + 1);
+			}
+		}
+	}
+
+	/** Adds mWord[0..length) to the results if it is among the best */
+	private void offer(int length, int frequency) {
+		// The same word may come from several dictionaries
+		for (int i = 0; i < mResultCount; i++) {
+			if (mResultLength[i] == length && sameWord(mResults[i], length)) {
+				if (mResultFrequency[i] >= frequency) {
+					return;
+				}
+				remove(i);
+				break;
+			}
+		}
+		int pos = mResultCount;
+		while (pos > 0 && mResultFrequency[pos - 1] < frequency) {
+			pos--;
+		}
+		if (pos == MAX_SUGGESTIONS) {
+			return;
+		}
+		// Shift the rest down, reusing the buffer falling off the end
+		final int last = Math.min(mResultCount, MAX_SUGGESTIONS - 1);
+		final char[] buffer = mResults[last];
+		for (int i = last; i > pos; i--) {
+			mResults[i] = mResults[i - 1];
+			mResultLength[i] = mResultLength[i - 1];
+			mResultFrequency[i] = mResultFrequency[i - 1];
+		}
+		mResults[pos] = buffer;
+		System.arraycopy(mWord, 0, buffer, 0, length);
+		mResultLength[pos] = length;
+		mResultFrequency[pos] = frequency;
+		if (mResultCount < MAX_SUGGESTIONS) {
+			mResultCount++;
+		}
+	}
+
+	private boolean sameWord(char[] result, int length) {
+		for (int i = 0; i < length; i++) {
+			if (result[i] != mWord[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void remove(int index) {
+		final char[] buffer = mResults[index];
+		for (int i = index; i < mResultCount - 1; i++) {
+			mResults[i] = mResults[i + 1];
+			mResultLength[i] = mResultLength[i + 1];
+			mResultFrequency[i] = mResultFrequency[i + 1];
+		}
+		mResultCount--;
+		mResults[mResultCount] = buffer;
+	}
+}
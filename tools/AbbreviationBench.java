@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.tlundqvist.littlebigkeyboard.Abbreviations;
+
+/**
+ * Compares following the typed text through the compiled abbreviation trie of
+ * org.tlundqvist.littlebigkeyboard.Abbreviations with looking each typed word up
+ * in a map when it ends. See {@link Bench} for how to run it.
+ */
+public class AbbreviationBench {
+
+	private static final String ABBREVIATIONS = "brb=be right back\nomw=on my way\n"
+			+ "ty=thank you\nasap=as soon as possible\nfyi=for your information\n"
+			+ "addr=Storgatan 1\\n123 45 Stockholm";
+	private static final String TYPED = "brb omw ty, asap fyi hello world Typing AS USUAL addr. ";
+
+	private static final Map<String, String> sExpansions = new HashMap<String, String>();
+
+	public static void main(String[] args) throws IOException {
+		final File file = File.createTempFile("abbreviations", ".bin");
+		file.deleteOnExit();
+		Abbreviations.compile(ABBREVIATIONS, file);
+		final Abbreviations abbreviations = Abbreviations.load(file);
+		if (abbreviations == null) {
+			throw new IOException("Could not load " + file);
+		}
+		final String[] lines = ABBREVIATIONS.split("\n");
+		for (int i = 0; i < lines.length; i++) {
+			final int equals = lines[i].indexOf('=');
+			sExpansions.put(lines[i].substring(0, equals),
+					lines[i].substring(equals + 1).replace("\\n", "\n"));
+		}
+
+		boolean ok = check(abbreviations);
+		final Bench.Keystrokes trie = new Bench.Keystrokes() {
+			public int type(int count) {
+				return follow(abbreviations, count);
+			}
+		};
+		ok &= Bench.checkAllocations("abbreviation trie", trie);
+		Bench.time("abbreviation trie", trie, "map of words", new Bench.Keystrokes() {
+			public int type(int count) {
+				return lookUpWords(count);
+			}
+		});
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	/** One trie step per typed character, as LittleBigKeyboard does */
+	private static int follow(Abbreviations abbreviations, int count) {
+		int found = 0;
+		int node = abbreviations.getRoot();
+		for (int i = 0; i < count; i++) {
+			final char c = TYPED.charAt(i % TYPED.length());
+			if (Abbreviations.isAbbreviationChar(c)) {
+				if (node >= 0) {
+					node = abbreviations.step(node, c);
+				}
+			} else {
+				if (node > 0) {
+					found++;
+				}
+				node = abbreviations.getRoot();
+			}
+		}
+		return found;
+	}
+
+	private static int lookUpWords(int count) {
+		int found = 0;
+		final StringBuilder word = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			final char c = TYPED.charAt(i % TYPED.length());
+			if (Abbreviations.isAbbreviationChar(c)) {
+				word.append(c);
+			} else {
+				if (word.length() > 0 && sExpansions.get(word.toString().toLowerCase()) != null) {
+					found++;
+				}
+				word.setLength(0);
+			}
+		}
+		return found;
+	}
+
+	/** Checks the expansion of every typed word and of some near misses */
+	private static boolean check(Abbreviations abbreviations) {
+		int wrong = 0;
+		final String[] words = (TYPED + " as asa asapx b br brbb om 1 BRB Addr").split("[ ,.]+");
+		for (int i = 0; i < words.length; i++) {
+			int node = abbreviations.getRoot();
+			for (int j = 0; j < words[i].length() && node >= 0; j++) {
+				node = abbreviations.step(node, words[i].charAt(j));
+			}
+			final String expansion = node > 0 ? abbreviations.getExpansion(node) : null;
+			final String expected = sExpansions.get(words[i].toLowerCase());
+			if (expected == null ? expansion != null : !expected.equals(expansion)) {
+				if (wrong++ == 0) {
+					System.out.println("abbreviation trie: wrong expansion of " + words[i]);
+				}
+			}
+		}
+		return Bench.report("abbreviation trie", wrong);
+	}
+}
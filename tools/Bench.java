@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import java.lang.management.ManagementFactory;
+
+/**
+ * What the desktop benchmarks in this directory share. Each benchmark runs one
+ * keystroke lookup of the keyboard next to a plain implementation of the same
+ * thing, checks that both give the same results, checks that the lookup does not
+ * allocate and prints the time per keystroke of both. Runs on the development
+ * machine, not on the device, and needs the platform android.jar for the classes
+ * the keyboard sources import:
+ * <pre>
+ * javac -sourcepath ../src:. -classpath android.jar -d . KeyGridBench.java
+ * java -classpath .:android.jar KeyGridBench
+ * </pre>
+ * Counting allocations needs a HotSpot JVM. A benchmark exits with status 1 if a
+ * check fails, the timings are only printed.
+ */
+public class Bench {
+
+	/** Keystrokes typed before counting or timing, for the JIT */
+	public static final int WARM_UP = 200000;
+	/** Keystrokes typed while counting or timing */
+	public static final int KEYSTROKES = 1000000;
+
+	/** A run of keystrokes, returns something computed from them */
+	public interface Keystrokes {
+		int type(int count);
+	}
+
+	/** Results of the runs, so that the JIT cannot drop them */
+	private static volatile int sSink;
+
+	/**
+	 * Prints how many results differed from the reference.
+	 * @return whether none did
+	 */
+	public static boolean report(String name, int wrong) {
+		System.out.println(name + ": " + (wrong == 0 ? "same as reference" : wrong + " wrong, FAILED"));
+		return wrong == 0;
+	}
+
+	/**
+	 * Counts the bytes allocated while typing, after the JIT has compiled the
+	 * keystrokes.
+	 * @return whether nothing was allocated
+	 */
+	public static boolean checkAllocations(String name, Keystrokes keystrokes) {
+		sSink += keystrokes.type(WARM_UP);
+		// What counting allocates itself
+		final long first = getAllocated();
+		final long overhead = getAllocated() - first;
+		final long start = getAllocated();
+		sSink += keystrokes.type(KEYSTROKES);
+		final long bytes = Math.max(0, getAllocated() - start - overhead);
+		System.out.println(name + ": " + bytes + " bytes allocated in " + KEYSTROKES
+				+ " keystrokes" + (bytes > 0 ? ", FAILED" : ""));
+		return bytes == 0;
+	}
+
+	/** Prints the time per keystroke of a lookup and of its reference */
+	public static void time(String name, Keystrokes keystrokes, String referenceName,
+			Keystrokes reference) {
+		sSink += keystrokes.type(WARM_UP);
+		sSink += reference.type(WARM_UP);
+		final long ns = time(keystrokes);
+		final long referenceNs = time(reference);
+		System.out.println(String.format("%s: %.1f ns/keystroke, %s: %.1f ns/keystroke", name,
+				(double) ns / KEYSTROKES, referenceName, (double) referenceNs / KEYSTROKES));
+	}
+
+	private static long time(Keystrokes keystrokes) {
+		final long start = System.nanoTime();
+		sSink += keystrokes.type(KEYSTROKES);
+		return System.nanoTime() - start;
+	}
+
+	/** Bytes allocated by this thread so far */
+	private static long getAllocated() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import java.text.Normalizer;
+import java.util.Arrays;
+
+import org.tlundqvist.littlebigkeyboard.ComposeTable;
+
+/**
+ * Compares org.tlundqvist.littlebigkeyboard.ComposeTable with the dead key lookup
+ * it replaced, KeyEvent.getDeadChar(), which is a binary search among the accented
+ * letters. The accented letters are taken from Unicode composition of every ASCII
+ * letter with each accent. See {@link Bench} for how to run it.
+ */
+public class ComposeBench {
+
+	/** Dead key accents and their combining marks */
+	private static final char[] ACCENTS = { '\u00b4', '`', '\u00a8', '^', '~' };
+	private static final char[] MARKS = { '\u0301', '\u0300', '\u0308', '\u0302', '\u0303' };
+
+	/** Typed text with dead key accents, accents and compose sequences */
+	private static final String TYPED = "caf\u00b4e na\u00a8ive \u00b4\u00b4ae "
+			+ "se~nor ~ \u00b4\u00b4o/ \u00b4\u00b4ss \u00b4x ^o `a \u00b4\u00b4?? x";
+
+	/** Accent and letter, accent << 16 | letter, sorted, and the accented letters */
+	private static int[] sAccentKeys;
+	private static char[] sAccented;
+
+	public static void main(String[] args) {
+		makeAccented();
+		boolean ok = check();
+		final Bench.Keystrokes table = new Bench.Keystrokes() {
+			public int type(int count) {
+				return compose(count);
+			}
+		};
+		ok &= Bench.checkAllocations("compose table", table);
+		Bench.time("compose table", table, "binary search", new Bench.Keystrokes() {
+			public int type(int count) {
+				return searchAccented(count);
+			}
+		});
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	private static void makeAccented() {
+		final long[] entries = new long[ACCENTS.length * 52];
+		int n = 0;
+		for (int a = 0; a < ACCENTS.length; a++) {
+			for (char c = 'A'; c <= 'z'; c++) {
+				if (!Character.isLetter(c)) {
+					continue;
+				}
+				final String composed = Normalizer.normalize("" + c + MARKS[a], Normalizer.Form.NFC);
+				if (composed.length() == 1) {
+					entries[n++] = (long) (ACCENTS[a] << 16 | c) << 16 | composed.charAt(0);
+				}
+			}
+		}
+		Arrays.sort(entries, 0, n);
+		sAccentKeys = new int[n];
+		sAccented = new char[n];
+		for (int i = 0; i < n; i++) {
+			sAccentKeys[i] = (int) (entries[i] >> 16);
+			sAccented[i] = (char) entries[i];
+		}
+	}
+
+	/** The accented letter, or 0 */
+	private static int getAccented(char accent, char c) {
+		final int i = Arrays.binarySearch(sAccentKeys, accent << 16 | c);
+		return i >= 0 ? sAccented[i] : 0;
+	}
+
+	/**
+	 * Checks every Latin-1 character after each dead key. Space gives the accent and
+	 * the accent again starts a compose sequence.
+	 */
+	private static boolean check() {
+		int wrong = 0;
+		for (int a = 0; a < ACCENTS.length; a++) {
+			final int state = ComposeTable.getAccentState(ACCENTS[a]);
+			for (char c = ' '; c < 0x100; c++) {
+				int expected = getAccented(ACCENTS[a], c);
+				if (c == ' ') {
+					expected = ACCENTS[a];
+				} else if (c == ACCENTS[a]) {
+					expected = -1;
+				}
+				final int result = ComposeTable.compose(state, c);
+				if (expected < 0 ? !ComposeTable.isState(result) : result != expected) {
+					if (wrong++ == 0) {
+						System.out.println("compose table: wrong result for accent "
+								+ Integer.toHexString(ACCENTS[a]) + " and " + Integer.toHexString(c));
+					}
+				}
+			}
+		}
+		return Bench.report("compose table", wrong);
+	}
+
+	private static int compose(int count) {
+		int sum = 0;
+		int state = ComposeTable.NONE;
+		for (int i = 0; i < count; i++) {
+			final char c = TYPED.charAt(i % TYPED.length());
+			if (state == ComposeTable.NONE) {
+				state = ComposeTable.getAccentState(c);
+				if (state == ComposeTable.NONE) {
+					sum += c;
+				}
+				continue;
+			}
+			final int result = ComposeTable.compose(state, c);
+			if (ComposeTable.isState(result)) {
+				state = result;
+				sum += ComposeTable.getPendingChar(state);
+			} else {
+				sum += result != 0 ? result : ComposeTable.getUncomposedChar(state) + c;
+				state = ComposeTable.NONE;
+			}
+		}
+		return sum;
+	}
+
+	/** The same text through the binary search, which has no compose sequences */
+	private static int searchAccented(int count) {
+		int sum = 0;
+		char accent = 0;
+		for (int i = 0; i < count; i++) {
+			final char c = TYPED.charAt(i % TYPED.length());
+			if (accent == 0) {
+				if (ComposeTable.getAccentState(c) != ComposeTable.NONE) {
+					accent = c;
+				} else {
+					sum += c;
+				}
+				continue;
+			}
+			final int result = getAccented(accent, c);
+			sum += result != 0 ? result : accent + c;
+			accent = 0;
+		}
+		return sum;
+	}
+}
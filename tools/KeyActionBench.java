@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import java.util.Random;
+
+import android.inputmethodservice.Keyboard;
+
+import org.tlundqvist.littlebigkeyboard.KeyActionTable;
+import org.tlundqvist.littlebigkeyboard.LatinKeyboard;
+
+/**
+ * Compares key code dispatch through org.tlundqvist.littlebigkeyboard.KeyActionTable
+ * with the chain of key code comparisons LittleBigKeyboard.onKey() had before, over
+ * a mix of key codes like typing gives: mostly letters, spaces and punctuation,
+ * some deletes and a few shift, mode and arrow keys. See {@link Bench} for how to
+ * run it.
+ */
+public class KeyActionBench {
+
+	/** Special keys in the order the comparison chain tested them */
+	private static final int[] SPECIAL_KEYS = {
+		Keyboard.KEYCODE_DELETE, Keyboard.KEYCODE_SHIFT, Keyboard.KEYCODE_CANCEL,
+		LatinKeyboard.KEYCODE_OPTIONS, Keyboard.KEYCODE_MODE_CHANGE,
+		LatinKeyboard.KEYCODE_LEFT, LatinKeyboard.KEYCODE_RIGHT, LatinKeyboard.KEYCODE_END,
+		LatinKeyboard.KEYCODE_HOME, LatinKeyboard.KEYCODE_DEAD_ACUTE,
+		LatinKeyboard.KEYCODE_DEAD_GRAVE, LatinKeyboard.KEYCODE_DEAD_DIARESIS,
+		LatinKeyboard.KEYCODE_DEAD_CIRCUMFLEX, LatinKeyboard.KEYCODE_DEAD_TILDE
+	};
+
+	private static final String TEXT = "the quick brown fox jumps over the lazy dog, "
+			+ "and then it types a few sentences more. ";
+
+	private static final int[] sCodes = new int[4096];
+	/** Characters sent and actions performed, by action */
+	private static int sCharacters;
+	private static final int[] sPerformed = new int[-KeyActionTable.MIN_KEYCODE + 1];
+
+	public static void main(String[] args) {
+		final KeyActionTable actions = new KeyActionTable();
+		for (int i = 0; i < SPECIAL_KEYS.length; i++) {
+			// The options key had no action
+			if (SPECIAL_KEYS[i] != LatinKeyboard.KEYCODE_OPTIONS) {
+				final int code = SPECIAL_KEYS[i];
+				actions.set(code, new KeyActionTable.KeyAction() {
+					public void perform(int count) {
+						sPerformed[-code] += count;
+					}
+				});
+			}
+		}
+		makeCodes();
+
+		boolean ok = check(actions);
+		final Bench.Keystrokes table = new Bench.Keystrokes() {
+			public int type(int count) {
+				for (int i = 0; i < count; i++) {
+					dispatch(actions, sCodes[i & 4095]);
+				}
+				return sCharacters;
+			}
+		};
+		ok &= Bench.checkAllocations("key action table", table);
+		Bench.time("key action table", table, "key code comparisons", new Bench.Keystrokes() {
+			public int type(int count) {
+				for (int i = 0; i < count; i++) {
+					compare(sCodes[i & 4095]);
+				}
+				return sCharacters;
+			}
+		});
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	private static void makeCodes() {
+		final Random random = new Random(1);
+		int t = 0;
+		for (int i = 0; i < sCodes.length; i++) {
+			final int r = random.nextInt(1000);
+			if (r < 50) {
+				sCodes[i] = Keyboard.KEYCODE_DELETE;
+			} else if (r < 70) {
+				sCodes[i] = Keyboard.KEYCODE_SHIFT;
+			} else if (r < 75) {
+				sCodes[i] = Keyboard.KEYCODE_MODE_CHANGE;
+			} else if (r < 80) {
+				sCodes[i] = random.nextBoolean() ? LatinKeyboard.KEYCODE_LEFT : LatinKeyboard.KEYCODE_RIGHT;
+			} else if (r < 82) {
+				sCodes[i] = LatinKeyboard.KEYCODE_DEAD_ACUTE;
+			} else {
+				sCodes[i] = TEXT.charAt(t++ % TEXT.length());
+			}
+		}
+	}
+
+	/** As LittleBigKeyboard.onKey(): characters first, then the table */
+	private static void dispatch(KeyActionTable actions, int code) {
+		if (code >= 0) {
+			sCharacters += code;
+		} else {
+			actions.perform(code, 1);
+		}
+	}
+
+	/** As LittleBigKeyboard.onKey() was, the special keys compared one by one */
+	private static void compare(int code) {
+		if (code == Keyboard.KEYCODE_DELETE) {
+			sPerformed[-code]++;
+		} else if (code == Keyboard.KEYCODE_SHIFT) {
+			sPerformed[-code]++;
+		} else if (code == Keyboard.KEYCODE_CANCEL) {
+			sPerformed[-code]++;
+		} else if (code == LatinKeyboard.KEYCODE_OPTIONS) {
+			// Nothing
+		} else if (code == Keyboard.KEYCODE_MODE_CHANGE) {
+			sPerformed[-code]++;
+		} else if (code == LatinKeyboard.KEYCODE_LEFT) {
+			sPerformed[-code]++;
+		} else if (code == LatinKeyboard.KEYCODE_RIGHT) {
+			sPerformed[-code]++;
+		} else if (code == LatinKeyboard.KEYCODE_END) {
+			sPerformed[-code]++;
+		} else if (code == LatinKeyboard.KEYCODE_HOME) {
+			sPerformed[-code]++;
+		} else if (code == LatinKeyboard.KEYCODE_DEAD_ACUTE) {
+			sPerformed[-code]++;
+		} else if (code == LatinKeyboard.KEYCODE_DEAD_GRAVE) {
+			sPerformed[-code]++;
+		} else if (code == LatinKeyboard.KEYCODE_DEAD_DIARESIS) {
+			sPerformed[-code]++;
+		} else if (code == LatinKeyboard.KEYCODE_DEAD_CIRCUMFLEX) {
+			sPerformed[-code]++;
+		} else if (code == LatinKeyboard.KEYCODE_DEAD_TILDE) {
+			sPerformed[-code]++;
+		} else if (code >= 0) {
+			sCharacters += code;
+		}
+	}
+
+	/** Checks that every code from -200 to 200 does the same both ways */
+	private static boolean check(KeyActionTable actions) {
+		int wrong = 0;
+		for (int code = -200; code <= 200; code++) {
+			final int characters = sCharacters;
+			final int performed = code < 0 && code >= KeyActionTable.MIN_KEYCODE ? sPerformed[-code] : 0;
+			dispatch(actions, code);
+			final int tableCharacters = sCharacters - characters;
+			final int tablePerformed = code < 0 && code >= KeyActionTable.MIN_KEYCODE
+					? sPerformed[-code] - performed : 0;
+			compare(code);
+			if (sCharacters - characters != 2 * tableCharacters || (code < 0
+					&& code >= KeyActionTable.MIN_KEYCODE
+					&& sPerformed[-code] - performed != 2 * tablePerformed)) {
+				if (wrong++ == 0) {
+					System.out.println("key action table: wrong action for " + code);
+				}
+			}
+		}
+		return Bench.report("key action table", wrong);
+	}
+}
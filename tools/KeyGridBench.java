@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import android.inputmethodservice.Keyboard;
+
+import org.tlundqvist.littlebigkeyboard.KeyGrid;
+
+/**
+ * Compares org.tlundqvist.littlebigkeyboard.KeyGrid with finding the key at a touch
+ * point the way Keyboard.getNearestKeys() and Key.isInside() do, testing every
+ * key, on the shipped layouts. See {@link Bench} for how to run it:
+ * <pre>
+ * java -classpath .:android.jar KeyGridBench [res/xml directory]
+ * </pre>
+ * The layouts are laid out like Keyboard does, on a 480 pixel wide screen at
+ * density 1.5.
+ */
+public class KeyGridBench {
+
+	private static final String[] LAYOUTS = { "alpha", "alpha_shifted", "numeral", "numeral_shifted" };
+
+	private static final int DISPLAY_WIDTH = 480;
+	private static final float DENSITY = 1.5f;
+	/** key_height in res/values/dimens.xml */
+	private static final int KEY_HEIGHT = Math.round(55 * DENSITY);
+	/** ModKeyboardView.VERTICAL_CORRECTION */
+	private static final int VERTICAL_CORRECTION = -10;
+
+	private static final String ANDROID = "http://schemas.android.com/apk/res/android";
+
+	private int[] mKeys;
+	private int mWidth;
+	private int mHeight;
+	private final int[] mTouchX = new int[4096];
+	private final int[] mTouchY = new int[4096];
+
+	public static void main(String[] args) throws Exception {
+		final File dir = new File(args.length > 0 ? args[0] : "../res/xml");
+		boolean ok = true;
+		for (int i = 0; i < LAYOUTS.length; i++) {
+			ok &= new KeyGridBench().run(new File(dir, LAYOUTS[i] + ".xml"), LAYOUTS[i]);
+		}
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	private boolean run(File file, String name) throws Exception {
+		load(file);
+		final Random random = new Random(1);
+		for (int i = 0; i < mTouchX.length; i++) {
+			mTouchX[i] = random.nextInt(mWidth + 20) - 10;
+			mTouchY[i] = random.nextInt(mHeight + 20) - 10;
+		}
+		final KeyGrid grid = new KeyGrid(mWidth, mHeight, mKeys, VERTICAL_CORRECTION);
+
+		int wrong = 0;
+		for (int y = -20; y < mHeight + 20; y++) {
+			for (int x = -20; x < mWidth + 20; x++) {
+				if (grid.getKeyIndex(x, y) != findKey(x, y)) {
+					if (wrong++ == 0) {
+						System.out.println(name + ": wrong key at " + x + "," + y);
+					}
+				}
+			}
+		}
+		boolean ok = Bench.report(name + " key grid", wrong);
+
+		final Bench.Keystrokes gridKeystrokes = new Bench.Keystrokes() {
+			public int type(int count) {
+				int sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += grid.getKeyIndex(mTouchX[i & 4095], mTouchY[i & 4095]);
+				}
+				return sum;
+			}
+		};
+		ok &= Bench.checkAllocations(name + " key grid", gridKeystrokes);
+		Bench.time(name + " key grid", gridKeystrokes, "testing every key", new Bench.Keystrokes() {
+			public int type(int count) {
+				int sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += findKey(mTouchX[i & 4095], mTouchY[i & 4095]);
+				}
+				return sum;
+			}
+		});
+		return ok;
+	}
+
+	/**
+	 * Lays out the keys of a layout file as Keyboard does, into the key fields taken
+	 * by {@link KeyGrid#KeyGrid(int, int, int[], int)}.
+	 */
+	private void load(File file) throws Exception {
+		final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		final Element keyboard = factory.newDocumentBuilder().parse(file).getDocumentElement();
+		final int keyWidth = getSize(keyboard, "keyWidth", 0);
+		final int horizontalGap = getSize(keyboard, "horizontalGap", 0);
+		final int verticalGap = getSize(keyboard, "verticalGap", 0);
+		final ArrayList<int[]> keys = new ArrayList<int[]>();
+		int y = 0;
+		mWidth = 0;
+		final NodeList rows = keyboard.getElementsByTagName("Row");
+		for (int r = 0; r < rows.getLength(); r++) {
+			final Element row = (Element) rows.item(r);
+			final int rowEdgeFlags = getEdgeFlags(row.getAttributeNS(ANDROID, "rowEdgeFlags"));
+			int x = 0;
+			for (Node n = row.getFirstChild(); n != null; n = n.getNextSibling()) {
+				if (!(n instanceof Element) || !"Key".equals(n.getNodeName())) {
+					continue;
+				}
+				final Element key = (Element) n;
+				x += horizontalGap;
+				final int width = getSize(key, "keyWidth", keyWidth);
+				keys.add(new int[] {
+					x, y, width, KEY_HEIGHT,
+					rowEdgeFlags | getEdgeFlags(key.getAttributeNS(ANDROID, "keyEdgeFlags")),
+					key.getAttributeNS(ANDROID, "codes").split(",").length
+				});
+				x += width;
+			}
+			mWidth = Math.max(mWidth, x);
+			y += KEY_HEIGHT + verticalGap;
+		}
+		mHeight = y - verticalGap;
+		System.out.println(file.getName() + ": " + keys.size() + " keys, " + mWidth + "x" + mHeight);
+		mKeys = new int[keys.size() * KeyGrid.KEY_FIELDS];
+		for (int i = 0; i < keys.size(); i++) {
+			System.arraycopy(keys.get(i), 0, mKeys, i * KeyGrid.KEY_FIELDS, KeyGrid.KEY_FIELDS);
+		}
+	}
+
+	/** A size in percent of the display width, "18.5%p" */
+	private static int getSize(Element element, String name, int defaultSize) {
+		final String value = element.getAttributeNS(ANDROID, name);
+		if (!value.endsWith("%p")) {
+			return defaultSize;
+		}
+		final float percent = Float.parseFloat(value.substring(0, value.length() - 2));
+		return Math.round(DISPLAY_WIDTH * percent / 100);
+	}
+
+	private static int getEdgeFlags(String value) {
+		int flags = 0;
+		final String[] names = value.split("\\|");
+		for (int i = 0; i < names.length; i++) {
+			if ("left".equals(names[i])) flags |= Keyboard.EDGE_LEFT;
+			if ("right".equals(names[i])) flags |= Keyboard.EDGE_RIGHT;
+			if ("top".equals(names[i])) flags |= Keyboard.EDGE_TOP;
+			if ("bottom".equals(names[i])) flags |= Keyboard.EDGE_BOTTOM;
+		}
+		return flags;
+	}
+
+	/**
+	 * The key at a point by testing every key, as Keyboard.getNearestKeys() and
+	 * Key.isInside() do it.
+	 */
+	private int findKey(int x, int y) {
+		y += VERTICAL_CORRECTION;
+		if (x < 0 || x >= mWidth || y < 0 || y >= mHeight) {
+			return KeyGrid.NOT_A_KEY;
+		}
+		int found = KeyGrid.NOT_A_KEY;
+		for (int k = 0; k < mKeys.length; k += KeyGrid.KEY_FIELDS) {
+			final int left = mKeys[k];
+			final int top = mKeys[k + 1];
+			final int right = left + mKeys[k + 2];
+			final int bottom = top + mKeys[k + 3];
+			final int edgeFlags = mKeys[k + 4];
+			if ((x >= left || ((edgeFlags & Keyboard.EDGE_LEFT) > 0 && x <= right))
+					&& (x < right || ((edgeFlags & Keyboard.EDGE_RIGHT) > 0 && x >= left))
+					&& (y >= top || ((edgeFlags & Keyboard.EDGE_TOP) > 0 && y <= bottom))
+					&& (y < bottom || ((edgeFlags & Keyboard.EDGE_BOTTOM) > 0 && y >= top))) {
+				found = k / KeyGrid.KEY_FIELDS;
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 Thomas Lundqvist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.tlundqvist.littlebigkeyboard.DictionaryWriter;
+
+/**
+ * Builds a dictionary file for the keyboard's word suggestions from a word list,
+ * see org.tlundqvist.littlebigkeyboard.WordDictionary for the format. Runs on the
+ * development machine, not on the device:
+ * <pre>
+ * javac -sourcepath ../src -d . MakeDictionary.java
+ * java MakeDictionary words_sv.txt dict_sv.bin
+ * adb push dict_sv.bin /data/data/org.tlundqvist.littlebigkeyboard/files/
+ * </pre>
+ * The word list is UTF-8 with one word per line, optionally followed by white space
+ * and a count of how common it is. Counts are scaled to frequencies 1-255 on a log
+ * scale.
+ */
+public class MakeDictionary {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java MakeDictionary <word list> <dictionary file>");
+			System.exit(1);
+		}
+		final Map<String, Long> counts = new HashMap<String, Long>();
+		long maxCount = 1;
+		BufferedReader in = new BufferedReader(
+				new InputStreamReader(new FileInputStream(args[0]), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				final String[] fields = line.trim().split("\\s+");
+				if (fields.length == 0 || fields[0].length() == 0) {
+					continue;
+				}
+				final String word = fields[0].toLowerCase();
+				final long count = fields.length > 1 ? Math.max(1, Long.parseLong(fields[1])) : 1;
+				final Long old = counts.get(word);
+				final long total = old != null ? old.longValue() + count : count;
+				counts.put(word, Long.valueOf(total));
+				maxCount = Math.max(maxCount, total);
+			}
+		} finally {
+			in.close();
+		}
+
+		final DictionaryWriter writer = new DictionaryWriter();
+		final double logMax = Math.log(maxCount + 1);
+		for (Map.Entry<String, Long> e : counts.entrySet()) {
+			writer.add(e.getKey(),
+					(int) Math.round(255 * Math.log(e.getValue().longValue() + 1) / logMax));
+		}
+		FileOutputStream out = new FileOutputStream(args[1]);
+		try {
+			writer.write(out);
+		} finally {
+			out.close();
+		}
+		System.out.println(args[1] + ": " + writer.getWordCount() + " words");
+	}
+}